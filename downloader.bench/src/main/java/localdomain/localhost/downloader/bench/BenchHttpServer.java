@@ -0,0 +1,193 @@
+package localdomain.localhost.downloader.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Embedded HTTP server answering HEAD and ranged GET requests for files kept in memory or on disk.
+ * It runs in the same JVM as benchmarks, its threads are named {@code bench-server-*}, so their CPU time
+ * can be told apart, see {@link #getCpuTime()}.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class BenchHttpServer implements AutoCloseable {
+    private static final String THREAD_PREFIX = "bench-server-";
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    static {
+        // headers and content are written separately, with Nagle's algorithm small responses wait for delayed ACKs
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+
+    /**
+     * @param threads number of threads serving requests, it should not be less than number of connections.
+     */
+    BenchHttpServer(int threads) throws IOException {
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, THREAD_PREFIX + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return url of the file served from memory.
+     */
+    String addMemory(String path, byte[] data) {
+        resources.put(path, new Resource(data.length) {
+            @Override
+            void read(ByteBuffer buffer, long offset) {
+                buffer.put(data, (int) offset, buffer.remaining());
+            }
+        });
+        return getUrl(path);
+    }
+
+    /**
+     * @return url of the file served from disk, requests read it concurrently with positional reads.
+     */
+    String addFile(String path, File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        resources.put(path, new Resource(file.length()) {
+            @Override
+            void read(ByteBuffer buffer, long offset) throws IOException {
+                long position = offset;
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException(file + " is truncated");
+                    }
+                    position += read;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        });
+        return getUrl(path);
+    }
+
+    /**
+     * @return CPU time of server threads in nanoseconds.
+     */
+    static long getCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && (info.getThreadName().startsWith(THREAD_PREFIX)
+                    || info.getThreadName().equals("HTTP-Dispatcher"))) {
+                long time = threads.getThreadCpuTime(info.getThreadId());
+                if (time > 0) {
+                    total += time;
+                }
+            }
+        }
+        return total;
+    }
+
+    private String getUrl(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            Resource resource = resources.get(exchange.getRequestURI().getPath());
+            if (resource == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                // the connection is kept alive only if the request is read before headers without content are sent
+                exchange.getRequestBody().close();
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(resource.size));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            long from = 0;
+            long to = resource.size - 1;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null) {
+                String[] parts = range.substring("bytes=".length()).split("-");
+                from = Long.parseLong(parts[0]);
+                if (parts.length > 1) {
+                    to = Math.min(to, Long.parseLong(parts[1]));
+                }
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + resource.size);
+                exchange.sendResponseHeaders(206, to - from + 1);
+            } else {
+                exchange.sendResponseHeaders(200, resource.size);
+            }
+
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            try (OutputStream body = exchange.getResponseBody()) {
+                for (long offset = from; offset <= to; ) {
+                    chunk.clear();
+                    chunk.limit((int) Math.min(CHUNK_SIZE, to - offset + 1));
+                    resource.read(chunk, offset);
+                    body.write(chunk.array(), 0, chunk.position());
+                    offset += chunk.position();
+                }
+            }
+        } catch (IOException e) {
+            // client closed connection
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.stop(0);
+        executor.shutdownNow();
+        for (Resource resource : resources.values()) {
+            resource.close();
+        }
+    }
+
+    private static abstract class Resource implements Closeable {
+        private final long size;
+
+        private Resource(long size) {
+            this.size = size;
+        }
+
+        /**
+         * Fills remaining space of the buffer with content of the file from the offset.
+         */
+        abstract void read(ByteBuffer buffer, long offset) throws IOException;
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
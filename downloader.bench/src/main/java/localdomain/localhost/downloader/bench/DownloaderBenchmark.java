@@ -0,0 +1,187 @@
+package localdomain.localhost.downloader.bench;
+
+import com.sun.management.OperatingSystemMXBean;
+import localdomain.localhost.downloader.core.Download;
+import localdomain.localhost.downloader.core.Downloader;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end benchmarks of {@link Downloader} against {@link BenchHttpServer} on the loopback interface.
+ * Server threads run in the same JVM and compete for the same cores, so results are comparable with each
+ * other rather than with real networks.
+ *
+ * {@link #largeFile(Cpu)} measures time to download a large file, throughput is its size divided by the time,
+ * {@link Cpu#cpuMsPerGb} is CPU time of the process except server threads, so garbage collection and compilation
+ * are included. {@link #smallFile()} measures latency of a small file including HEAD request, files are downloaded
+ * in batches, so the time is averaged over concurrent downloads. Allocation rate
+ * is reported by the {@code gc} profiler:
+ * <pre>
+ * java -jar downloader.bench/target/benchmarks.jar DownloaderBenchmark -prof gc -p threads=1,8 -p source=Memory
+ * </pre>
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+public class DownloaderBenchmark {
+    static final int LARGE_FILE_SIZE = 128 * 1024 * 1024;
+    static final int SMALL_FILE_SIZE = 16 * 1024;
+    static final int SMALL_FILES = 32;
+    private static final int SERVER_THREADS = 64;
+
+    @Param({"1", "4", "16"})
+    public int threads;
+
+    @Param({"40960", "262144"})
+    public int bufferSize;
+
+    /**
+     * Fixed size of segments in bytes, 0 for segments sized from measured throughput.
+     */
+    @Param({"0", "4194304"})
+    public long segmentSize;
+
+    @Param({"Pool", "Async"})
+    public Downloader.ExecutionMode executionMode;
+
+    @Param({"Memory", "File"})
+    public Source source;
+
+    private BenchHttpServer server;
+    private File sourceDirectory;
+    private File downloadDirectory;
+    private Downloader downloader;
+    private String largeUrl;
+    private final List<String> smallUrls = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new BenchHttpServer(SERVER_THREADS);
+        sourceDirectory = Files.createTempDirectory("bench-source").toFile();
+        downloadDirectory = Files.createTempDirectory("bench-downloads").toFile();
+        largeUrl = add("/large.dat", LARGE_FILE_SIZE);
+        for (int i = 0; i < SMALL_FILES; i++) {
+            smallUrls.add(add("/small-" + i + ".dat", SMALL_FILE_SIZE));
+        }
+
+        downloader = new Downloader(downloadDirectory);
+        downloader.setExecutionMode(executionMode);
+        downloader.setThreadsNumber(threads);
+        downloader.setBufferSize(bufferSize);
+        downloader.setSegmentSize(segmentSize);
+        // files are downloaded again every invocation
+        downloader.setJournalEnabled(false);
+    }
+
+    private String add(String path, int size) throws IOException {
+        byte[] data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+        if (source == Source.Memory) {
+            return server.addMemory(path, data);
+        }
+        File file = new File(sourceDirectory, path.substring(1));
+        FileUtils.writeByteArrayToFile(file, data);
+        return server.addFile(path, file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        downloader.close();
+        server.close();
+        FileUtils.deleteDirectory(sourceDirectory);
+        FileUtils.deleteDirectory(downloadDirectory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void largeFile(Cpu cpu) throws Exception {
+        long cpuTime = cpu.getCpuTime();
+        download(largeUrl);
+        cpu.record(cpuTime, LARGE_FILE_SIZE);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @OperationsPerInvocation(SMALL_FILES)
+    public void smallFile() throws Exception {
+        download(smallUrls.toArray(new String[0]));
+    }
+
+    private void download(String... urls) throws Exception {
+        List<Download> downloads = new ArrayList<>();
+        for (String url : urls) {
+            downloads.add(downloader.createDownload(url));
+        }
+        downloader.startAll();
+        downloader.waitAll();
+        for (Download download : downloads) {
+            if (download.getState() != Download.State.Finished) {
+                throw new IllegalStateException(download.getUrl() + " is " + download.getState());
+            }
+        }
+        // the downloader keeps all downloads it has ever created
+        downloader.getDownloads().clear();
+    }
+
+    public enum Source {
+        Memory,
+        File
+    }
+
+    /**
+     * CPU time spent per gigabyte downloaded during an iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Cpu {
+        public double cpuMsPerGb;
+        private long cpuTime;
+        private long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            cpuMsPerGb = 0;
+            cpuTime = 0;
+            bytes = 0;
+        }
+
+        long getCpuTime() {
+            OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+            return os.getProcessCpuTime() - BenchHttpServer.getCpuTime();
+        }
+
+        void record(long startCpuTime, long downloaded) {
+            cpuTime += getCpuTime() - startCpuTime;
+            bytes += downloaded;
+            cpuMsPerGb = TimeUnit.NANOSECONDS.toMillis(cpuTime) * (double) (1L << 30) / bytes;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package localdomain.localhost.downloader.bench;
+
+import localdomain.localhost.downloader.core.MultipartProgress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmarks of {@link MultipartProgress} with a file split into {@link #parts} chunks.
+ *
+ * {@link #addProgress()} adds all chunks in random order to empty progress, so it covers both appending
+ * to existing parts and merging neighbours, time is for all chunks. {@link #getMissingParts()} lists gaps of
+ * progress where every other chunk is downloaded.
+ * <p>
+ * {@link #interleaved()} simulates {@link #parts} segments reporting {@value #WRITE_SIZE} byte writes in turn
+ * while progress is polled for repaints, {@link #interleavedTreeSet()} runs the same with the former
+ * {@link TreeSet} based implementation, time is per write.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MultipartProgressBenchmark {
+    private static final long CHUNK_SIZE = 64 * 1024;
+    private static final int WRITE_SIZE = 4096 * 10;
+    private static final int WRITES = 65536;
+    private static final int POLL_INTERVAL = 16;
+
+    @Param({"16", "1024", "65536"})
+    public int parts;
+
+    private long size;
+    private long[] offsets;
+    private MultipartProgress halfDone;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        size = parts * CHUNK_SIZE;
+        offsets = new long[parts];
+        for (int i = 0; i < parts; i++) {
+            offsets[i] = i * CHUNK_SIZE;
+        }
+        Random random = new Random(42);
+        for (int i = parts - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long offset = offsets[i];
+            offsets[i] = offsets[j];
+            offsets[j] = offset;
+        }
+
+        halfDone = new MultipartProgress(size);
+        for (long offset = 0; offset < size; offset += 2 * CHUNK_SIZE) {
+            halfDone.addProgress(offset, CHUNK_SIZE);
+        }
+    }
+
+    @Benchmark
+    public MultipartProgress addProgress() {
+        MultipartProgress progress = new MultipartProgress(size);
+        for (long offset : offsets) {
+            progress.addProgress(offset, CHUNK_SIZE);
+        }
+        return progress;
+    }
+
+    @Benchmark
+    public List<MultipartProgress.ProgressPart> getMissingParts() {
+        return halfDone.getMissingParts();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WRITES)
+    public long interleaved() {
+        long partSize = (long) WRITES / parts * WRITE_SIZE;
+        MultipartProgress progress = new MultipartProgress(partSize * parts);
+        long sink = 0;
+        for (int write = 0; write < WRITES / parts; write++) {
+            for (int part = 0; part < parts; part++) {
+                progress.addProgress(part * partSize + (long) write * WRITE_SIZE, WRITE_SIZE);
+                if (write % POLL_INTERVAL == 0) {
+                    sink += progress.getAbsoluteProgress();
+                }
+            }
+        }
+        return progress.isComplete() ? sink : -sink;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WRITES)
+    public long interleavedTreeSet() {
+        long partSize = (long) WRITES / parts * WRITE_SIZE;
+        TreeSetProgress progress = new TreeSetProgress(partSize * parts);
+        long sink = 0;
+        for (int write = 0; write < WRITES / parts; write++) {
+            for (int part = 0; part < parts; part++) {
+                progress.addProgress(part * partSize + (long) write * WRITE_SIZE, WRITE_SIZE);
+                if (write % POLL_INTERVAL == 0) {
+                    sink += progress.getAbsoluteProgress();
+                }
+            }
+        }
+        return progress.isComplete() ? sink : -sink;
+    }
+
+    /**
+     * Former implementation of {@link MultipartProgress}.
+     */
+    private static class TreeSetProgress {
+        private final TreeSet<MultipartProgress.ProgressPart> parts = new TreeSet<>();
+        private final long size;
+
+        TreeSetProgress(long size) {
+            this.size = size;
+        }
+
+        synchronized long getAbsoluteProgress() {
+            return parts.stream().mapToLong(p -> p.getTo() - p.getFrom()).sum();
+        }
+
+        synchronized boolean isComplete() {
+            return parts.size() == 1 && parts.first().getFrom() == 0 && parts.first().getTo() == size;
+        }
+
+        synchronized void addProgress(long offset, long length) {
+            long from = offset;
+            long to = offset + length;
+
+            Iterator<MultipartProgress.ProgressPart> iterator = parts.iterator();
+            while (iterator.hasNext()) {
+                MultipartProgress.ProgressPart part = iterator.next();
+
+                if (from <= part.getFrom() && to >= part.getTo()) {
+                    iterator.remove();
+                } else if (from >= part.getFrom() && to <= part.getTo()) {
+                    return;
+                } else if (from <= part.getFrom() && to >= part.getFrom()) {
+                    to = part.getTo();
+                    iterator.remove();
+                } else if (part.getFrom() <= from && part.getTo() >= from) {
+                    from = part.getFrom();
+                    iterator.remove();
+                }
+            }
+
+            parts.add(new MultipartProgress.ProgressPart(from, to));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package localdomain.localhost.downloader.bench;
+
+import localdomain.localhost.downloader.core.Download;
+import localdomain.localhost.downloader.core.Downloader;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link Downloader.WriteMode write modes} by downloading a file from memory of {@link BenchHttpServer},
+ * so storage is the only part which differs. Time is for the whole file including the final flush,
+ * see {@link Downloader#setForceOnFinish(boolean)}.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WriteModeBenchmark {
+    private static final int FILE_SIZE = 256 * 1024 * 1024;
+    private static final int SERVER_THREADS = 16;
+
+    @Param({"Stream", "Mapped"})
+    public Downloader.WriteMode writeMode;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private BenchHttpServer server;
+    private File downloadDirectory;
+    private Downloader downloader;
+    private String url;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new BenchHttpServer(SERVER_THREADS);
+        byte[] data = new byte[FILE_SIZE];
+        ThreadLocalRandom.current().nextBytes(data);
+        url = server.addMemory("/file.dat", data);
+        downloadDirectory = Files.createTempDirectory("bench-downloads").toFile();
+
+        downloader = new Downloader(downloadDirectory);
+        downloader.setWriteMode(writeMode);
+        downloader.setThreadsNumber(threads);
+        downloader.setForceOnFinish(true);
+        // the file is downloaded again every invocation
+        downloader.setJournalEnabled(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        downloader.close();
+        server.close();
+        FileUtils.deleteDirectory(downloadDirectory);
+    }
+
+    @Benchmark
+    public void write() throws Exception {
+        Download download = downloader.createDownload(url);
+        downloader.startAll();
+        downloader.waitAll();
+        if (download.getState() != Download.State.Finished) {
+            throw new IllegalStateException(download.getUrl() + " is " + download.getState());
+        }
+        // the downloader keeps all downloads it has ever created
+        downloader.getDownloads().clear();
+        Files.delete(new File(download.getFilename()).toPath());
+    }
+}
@@ -0,0 +1,98 @@
+package localdomain.localhost.downloader.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * {@link DownloadStorage} writing through a single shared {@link AsynchronousFileChannel}, so writes
+ * don't block threads which receive data.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class AsyncChannelStorage implements DownloadStorage {
+    private final String filename;
+    private volatile AsynchronousFileChannel channel;
+
+    AsyncChannelStorage(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * Channel is reopened on demand after {@link #close(boolean)}.
+     */
+    AsynchronousFileChannel getChannel() throws IOException {
+        // every write gets the channel, so parts don't contend on the monitor while it's open
+        AsynchronousFileChannel channel = this.channel;
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+        synchronized (this) {
+            channel = this.channel;
+            if (channel == null || !channel.isOpen()) {
+                channel = AsynchronousFileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                this.channel = channel;
+            }
+            return channel;
+        }
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer source) throws IOException {
+        try {
+            writeAsync(offset, source).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + filename, e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(long offset, ByteBuffer source) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            AsynchronousFileChannel channel = getChannel();
+            channel.write(source, offset, offset, new CompletionHandler<Integer, Long>() {
+                @Override
+                public void completed(Integer written, Long position) {
+                    if (source.hasRemaining()) {
+                        long next = position + written;
+                        channel.write(source, next, next, this);
+                    } else {
+                        result.complete(null);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable e, Long position) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void close(boolean force) throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            if (force && channel.isOpen()) {
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+}
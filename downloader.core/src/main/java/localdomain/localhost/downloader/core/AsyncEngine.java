@@ -0,0 +1,696 @@
+package localdomain.localhost.downloader.core;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads segments with non-blocking I/O of an asynchronous HTTP client, so a few I/O threads drive
+ * thousands of concurrent segments. A single dispatcher thread takes segments from {@link DownloadScheduler}
+ * while number of segments in progress is below the limit. Received bytes are written with
+ * {@link DownloadStorage#writeAsync(long, ByteBuffer)}, input of the connection is suspended meanwhile
+ * and while the download is throttled.
+ * <p>
+ * Files are always prepared with a {@code HEAD} request. Callbacks of the client only hand segments which are
+ * done over to a small pool, which prepares and finishes downloads.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class AsyncEngine {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncEngine.class);
+    private static final int MAX_RETRY_COUNT = 5;
+    private static final int COMPLETION_THREADS = 4;
+
+    private final Downloader downloader;
+    private final DownloadScheduler scheduler;
+    private final SegmentPlanner planner;
+    private final int bufferSize;
+    private final PoolingNHttpClientConnectionManager connectionManager;
+    private final CloseableHttpAsyncClient client;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            Downloader.daemonThreads("downloader-async-timer"));
+    /**
+     * Prepares and finishes downloads, which creates, verifies and syncs files and notifies the handler,
+     * so callbacks of the client don't stall I/O of other downloads meanwhile.
+     */
+    private final ThreadPoolExecutor completions = new ThreadPoolExecutor(COMPLETION_THREADS, COMPLETION_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), Downloader.daemonThreads("downloader-async-completion"));
+    private final Set<Transfer> transfers = ConcurrentHashMap.newKeySet();
+    private final Semaphore permits = new Semaphore(0);
+    /**
+     * Number of acquired permits which should be dropped instead of released, because concurrency was reduced
+     * below the number of segments in progress. Every transfer over the limit claims one of them to stop early,
+     * see {@link Transfer#tryRetire()}.
+     */
+    private final AtomicInteger surplus = new AtomicInteger();
+    private int concurrency;
+
+    /**
+     * @param concurrency maximum number of segments in progress.
+     */
+    AsyncEngine(Downloader downloader, DownloadScheduler scheduler, SegmentPlanner planner, int concurrency,
+                int bufferSize) throws IOReactorException {
+        this.downloader = downloader;
+        this.scheduler = scheduler;
+        this.planner = planner;
+        this.bufferSize = bufferSize;
+        completions.allowCoreThreadTimeOut(true);
+        this.connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(IOReactorConfig.DEFAULT, Downloader.daemonThreads("downloader-io")));
+        this.client = HttpAsyncClients.custom().setConnectionManager(connectionManager)
+                .setThreadFactory(Downloader.daemonThreads("downloader-reactor")).build();
+        setConcurrency(concurrency);
+        client.start();
+    }
+
+    /**
+     * Changes maximum number of segments in progress. Segments over the limit stop after their current chunk
+     * and their remaining ranges are scheduled again, next segments are started once enough of them complete.
+     */
+    synchronized void setConcurrency(int concurrency) {
+        connectionManager.setDefaultMaxPerRoute(concurrency);
+        // room for idle keep-alive connections to other hosts
+        connectionManager.setMaxTotal(concurrency * 2);
+        if (concurrency > this.concurrency) {
+            int added = concurrency - this.concurrency;
+            // segments over the previous limit keep their permits
+            permits.release(added - claimSurplus(added));
+        } else {
+            int reduction = this.concurrency - concurrency;
+            while (reduction > 0 && permits.tryAcquire()) {
+                reduction--;
+            }
+            surplus.addAndGet(reduction);
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @return number of claimed surplus permits, at most {@code max}.
+     */
+    private int claimSurplus(int max) {
+        while (true) {
+            int current = surplus.get();
+            int claimed = Math.min(current, max);
+            if (claimed <= 0) {
+                return 0;
+            }
+            if (surplus.compareAndSet(current, current - claimed)) {
+                return claimed;
+            }
+        }
+    }
+
+    /**
+     * Releases permit of a segment unless it's dropped to reduce concurrency.
+     */
+    private void releasePermit() {
+        if (claimSurplus(1) == 0) {
+            permits.release();
+        }
+    }
+
+    /**
+     * Starts segments taken from the scheduler until the dispatcher is stopped,
+     * see {@link DownloadScheduler#take(int)}.
+     */
+    void dispatch(int generation) {
+        try {
+            while (true) {
+                permits.acquire();
+                DownloadScheduler.Segment segment = scheduler.take(generation);
+                if (segment == null) {
+                    releasePermit();
+                    return;
+                }
+                start(segment);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void start(DownloadScheduler.Segment segment) {
+        try {
+            if (segment.getType() == DownloadScheduler.Segment.Type.Prepare) {
+                if (segment.isRestart()) {
+                    downloader.discard(segment.getDownload());
+                }
+                prepare(segment, 0);
+            } else {
+                new Transfer(segment).start();
+            }
+        } catch (RuntimeException e) {
+            done(segment, 0, 0, e);
+        }
+    }
+
+    private void prepare(DownloadScheduler.Segment segment, int tryCount) {
+        Download download = segment.getDownload();
+        HttpHead request = new HttpHead(download.getUrl());
+        long requestStart = System.nanoTime();
+        client.execute(HttpAsyncMethods.create(request), new HeadConsumer(), new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                downloader.responseReceived(download, requestStart);
+                offload(() -> prepared(segment, request, response));
+            }
+
+            @Override
+            public void failed(Exception e) {
+                if (tryCount < MAX_RETRY_COUNT) {
+                    // keep-alive connection may be closed by server, the client doesn't retry
+                    download.getMetrics().retried();
+                    prepare(segment, tryCount + 1);
+                    return;
+                }
+                done(segment, 0, 0, e);
+            }
+
+            @Override
+            public void cancelled() {
+                done(segment, 0, 0, false);
+            }
+        });
+    }
+
+    /**
+     * Creates the file of a download prepared with the response, runs in {@link #completions}.
+     */
+    private void prepared(DownloadScheduler.Segment segment, HttpHead request, HttpResponse response) {
+        Download download = segment.getDownload();
+        boolean failed = false;
+        try {
+            downloader.prepare(download, request, response);
+            downloader.prepared(segment, null);
+            failed = download.getState() == Download.State.Error;
+        } catch (RetryLaterException e) {
+            downloader.retryLater(segment, e);
+        } catch (IOException | RuntimeException e) {
+            downloader.fail(download, e);
+            failed = true;
+        } finally {
+            complete(segment, 0, 0, failed);
+        }
+    }
+
+    private void done(DownloadScheduler.Segment segment, long remainingFrom, long remainingTo, boolean failed) {
+        done(segment, remainingFrom, remainingTo, failed, null, false);
+    }
+
+    /**
+     * Fails the download of the segment and marks the segment as done.
+     */
+    private void done(DownloadScheduler.Segment segment, long remainingFrom, long remainingTo, Exception error) {
+        done(segment, remainingFrom, remainingTo, true, error, false);
+    }
+
+    /**
+     * @param error failure of the download or {@code null}.
+     * @param retired whether permit of the segment is already claimed as surplus, see {@link Transfer#tryRetire()}.
+     */
+    private void done(DownloadScheduler.Segment segment, long remainingFrom, long remainingTo, boolean failed,
+                      Exception error, boolean retired) {
+        offload(() -> {
+            try {
+                if (error != null) {
+                    downloader.fail(segment.getDownload(), error);
+                }
+            } finally {
+                complete(segment, remainingFrom, remainingTo, failed, retired);
+            }
+        });
+    }
+
+    private void complete(DownloadScheduler.Segment segment, long remainingFrom, long remainingTo, boolean failed) {
+        complete(segment, remainingFrom, remainingTo, failed, false);
+    }
+
+    private void complete(DownloadScheduler.Segment segment, long remainingFrom, long remainingTo, boolean failed,
+                          boolean retired) {
+        try {
+            downloader.complete(segment, remainingFrom, remainingTo, failed);
+        } finally {
+            if (!retired) {
+                releasePermit();
+            }
+        }
+    }
+
+    private void offload(Runnable task) {
+        try {
+            completions.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the engine is closed, remaining segments are released right away
+            task.run();
+        }
+    }
+
+    PoolStats getConnectionPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * Interrupts segments in progress, their remaining ranges are scheduled again.
+     */
+    void cancel() {
+        for (Transfer transfer : transfers) {
+            transfer.stop();
+        }
+    }
+
+    /**
+     * Interrupts segments in progress and releases resources.
+     */
+    void close() {
+        cancel();
+        try {
+            client.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close async client", e);
+        }
+        timer.shutdownNow();
+        completions.shutdown();
+    }
+
+    /**
+     * Download of a {@link DownloadScheduler.Segment.Type#Part} or {@link DownloadScheduler.Segment.Type#Sequential}
+     * segment, retries continue from the last written byte of the part. Every read from the connection is written
+     * before the next one, so callbacks of the exchange wait for the pending write.
+     */
+    private final class Transfer implements FutureCallback<Void> {
+        private final DownloadScheduler.Segment segment;
+        private final Download download;
+        /**
+         * Cursor of the part or {@code null} for sequential download.
+         */
+        private final MultipartProgress.Cursor cursor;
+        private final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        private final long started = System.nanoTime();
+        private final long from;
+        private long position;
+        private int tryCount;
+        private long requestStart;
+        /**
+         * Digest of the current response announced by server, see {@link Downloader#setVerificationEnabled(boolean)},
+         * or {@code null}. Writes of a transfer complete in order, so it's updated as they complete.
+         */
+        private volatile Checksum checksum;
+        private volatile MessageDigest digest;
+        private volatile long responseFrom;
+        private boolean finished;
+        private volatile boolean stopped;
+        private volatile boolean retired;
+        private volatile boolean split;
+        private volatile CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+        private volatile Future<Void> future;
+
+        private Transfer(DownloadScheduler.Segment segment) {
+            this.segment = segment;
+            this.download = segment.getDownload();
+            this.cursor = segment.getType() == DownloadScheduler.Segment.Type.Part
+                    ? download.openCursor(segment.getFrom(), segment.getTo()) : null;
+            this.from = segment.getFrom();
+            // sequential download continues after downloaded bytes if server sends the rest of the file
+            this.position = cursor == null ? download.getCompletedEnd(0) : 0;
+            // the response is only passed by blocking prepare
+            Downloader.release(segment.getResponse());
+            download.getMetrics().segmentStarted();
+        }
+
+        private void start() {
+            transfers.add(this);
+            try {
+                request();
+            } catch (RuntimeException e) {
+                done(true, e);
+            }
+        }
+
+        private void request() {
+            HttpGet request = new HttpGet(download.getUrl());
+            if (cursor != null) {
+                Downloader.addRange(request, download, cursor);
+            } else if (position > 0) {
+                Downloader.addRange(request, download, position);
+            }
+            requestStart = System.nanoTime();
+            future = client.execute(HttpAsyncMethods.create(request), new Consumer(), this);
+            if (stopped) {
+                future.cancel(true);
+            }
+        }
+
+        private long getPosition() {
+            return cursor != null ? cursor.getPosition() : position;
+        }
+
+        private long getEnd() {
+            return cursor != null ? cursor.getEnd() : Long.MAX_VALUE;
+        }
+
+        /**
+         * Claims a surplus permit, so when concurrency is reduced by N, exactly N transfers stop.
+         * @return whether the transfer should stop, its permit is dropped when it's done.
+         */
+        private boolean tryRetire() {
+            if (retired || claimSurplus(1) == 0) {
+                return false;
+            }
+            retired = true;
+            return true;
+        }
+
+        private void stop() {
+            stopped = true;
+            Future<Void> future = this.future;
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+
+        /**
+         * Reads from the connection into the buffer and writes it, input is suspended until the write completes
+         * and the download is allowed by bandwidth limits.
+         */
+        private void received(ContentDecoder decoder, IOControl ioControl) throws IOException {
+            if (!pending.isDone()) {
+                ioControl.suspendInput();
+                return;
+            }
+            long writePosition = getPosition();
+            if (writePosition >= getEnd()) {
+                // part was split, the rest is downloaded by another segment
+                split = true;
+            }
+            if (split || stopped || pending.isCompletedExceptionally()) {
+                // cancelling the exchange from its own callbacks doesn't close the connection
+                throw new StoppedException();
+            }
+            buffer.clear();
+            if (getEnd() - writePosition < buffer.capacity()) {
+                buffer.limit((int) (getEnd() - writePosition));
+            }
+            int length = decoder.read(buffer);
+            if (length <= 0) {
+                return;
+            }
+            buffer.flip();
+
+            // the connection is released once the response is completed, it must not be left suspended
+            boolean completed = decoder.isCompleted();
+            if (!completed) {
+                ioControl.suspendInput();
+            }
+            long wait = downloader.reserve(download, length);
+            ByteBuffer data = buffer.duplicate();
+            pending = download.getStorage().writeAsync(writePosition, buffer).thenRun(() -> {
+                if (cursor != null) {
+                    downloader.addProgress(download, cursor, length);
+                } else {
+                    downloader.addProgress(download, writePosition, length);
+                    position += length;
+                }
+                MessageDigest digest = this.digest;
+                if (digest != null) {
+                    digest.update(data.duplicate());
+                }
+                downloader.written(download, writePosition, data);
+            });
+            pending.whenComplete((written, e) -> {
+                if (completed) {
+                    return;
+                }
+                if (cursor != null && !stopped && tryRetire()) {
+                    // concurrency was reduced, the rest of the part is scheduled again
+                    stopped = true;
+                }
+                if (e != null || stopped || wait <= 0) {
+                    ioControl.requestInput();
+                } else {
+                    timer.schedule(ioControl::requestInput, wait, TimeUnit.NANOSECONDS);
+                }
+            });
+        }
+
+        @Override
+        public void completed(Void result) {
+            pending.whenComplete((written, e) -> {
+                if (e != null) {
+                    failed(e);
+                } else if (!verified()) {
+                    // digest covers the whole response, so all of it is downloaded again
+                    downloader.rewind(download, cursor, responseFrom);
+                    failed(new IOException(checksum.getAlgorithm() + " digest of " + responseFrom + "-"
+                            + cursor.getEnd() + " doesn't match"));
+                } else if (cursor != null && !stopped && getPosition() < getEnd() && tryCount++ < MAX_RETRY_COUNT) {
+                    // response is shorter than requested
+                    download.getMetrics().retried();
+                    request();
+                } else {
+                    finished = true;
+                    done(false);
+                }
+            });
+        }
+
+        /**
+         * @return whether content of the completed response matches its digest, {@code true} if it isn't verified.
+         */
+        private boolean verified() {
+            MessageDigest digest = this.digest;
+            this.digest = null;
+            return digest == null || stopped || split || checksum.matches(digest.digest());
+        }
+
+        @Override
+        public void failed(Exception e) {
+            pending.whenComplete((written, writeError) -> failed(writeError != null ? writeError : e));
+        }
+
+        private void failed(Throwable e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof StoppedException) {
+                finished = split;
+                done(false);
+            } else if (cause instanceof RetryLaterIOException) {
+                downloader.retryLater(segment, ((RetryLaterIOException) cause).getCause());
+                done(false);
+            } else if (cause instanceof RangesIgnoredIOException) {
+                downloader.rangesIgnored(segment, ((RangesIgnoredIOException) cause).getCause());
+                done(false);
+            } else if (cause instanceof ContentChangedIOException) {
+                done(!downloader.restart(segment, ((ContentChangedIOException) cause).getCause()));
+            } else if (stopped) {
+                done(false);
+            } else if (tryCount++ < MAX_RETRY_COUNT) {
+                download.getMetrics().retried();
+                request();
+            } else {
+                done(true, cause instanceof Exception ? (Exception) cause : new IOException(cause));
+            }
+        }
+
+        @Override
+        public void cancelled() {
+            pending.whenComplete((written, e) -> {
+                if (e != null) {
+                    failed(e);
+                } else {
+                    finished = split;
+                    done(false);
+                }
+            });
+        }
+
+        private void done(boolean failed) {
+            done(failed, null);
+        }
+
+        /**
+         * @param error failure of the download or {@code null}.
+         */
+        private void done(boolean failed, Exception error) {
+            transfers.remove(this);
+            long remainingFrom = 0;
+            long remainingTo = 0;
+            if (cursor != null) {
+                remainingFrom = cursor.getPosition();
+                remainingTo = cursor.getEnd();
+                download.closeCursor(cursor);
+                planner.recordSegment(download.getHost(), remainingFrom - from, System.nanoTime() - started);
+                if (LOGGER.isInfoEnabled()) {
+                    LOGGER.info(download.getUrl() + ": " + from + "-" + remainingFrom + " downloaded.");
+                }
+            } else if (!finished) {
+                remainingTo = Long.MAX_VALUE;
+            } else if (download.isOpenEnded()) {
+                download.limitSize(position);
+            }
+            download.getMetrics().segmentFinished(System.nanoTime() - started);
+            AsyncEngine.this.done(segment, remainingFrom, remainingTo, failed || error != null, error, retired);
+        }
+
+        private final class Consumer extends AbstractAsyncResponseConsumer<Void> {
+            @Override
+            protected void onResponseReceived(HttpResponse response) throws HttpException, IOException {
+                downloader.responseReceived(download, requestStart);
+                try {
+                    Downloader.checkRetryLater(response);
+                    if (cursor != null) {
+                        Downloader.checkPartial(download, response);
+                        // content of a part after the end of the file is dropped as if the part was split
+                        downloader.checkRange(segment, cursor, response);
+                        Checksum checksum = downloader.isVerificationEnabled() ? Checksum.ofContent(response) : null;
+                        Transfer.this.checksum = checksum;
+                        responseFrom = cursor.getPosition();
+                        digest = checksum != null ? checksum.newDigest() : null;
+                    } else if (position > 0 && response.getStatusLine().getStatusCode() != 206) {
+                        // range is ignored or the file was changed, sequential download starts over
+                        position = 0;
+                        Downloader.startOver(download);
+                    }
+                } catch (RetryLaterException e) {
+                    throw new RetryLaterIOException(e);
+                } catch (ContentChangedException e) {
+                    throw new ContentChangedIOException(e);
+                } catch (RangesIgnoredException e) {
+                    throw new RangesIgnoredIOException(e);
+                }
+            }
+
+            @Override
+            protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+            }
+
+            @Override
+            protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+                received(decoder, ioControl);
+            }
+
+            @Override
+            protected Void buildResult(HttpContext context) {
+                return null;
+            }
+
+            @Override
+            protected void releaseResources() {
+            }
+        }
+    }
+
+    /**
+     * Consumer of {@code HEAD} responses. Unlike the default one, it doesn't reject responses of files
+     * larger than 2 GB, which it would have to buffer if they had content.
+     */
+    private static final class HeadConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+        private HttpResponse response;
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+            // responses to HEAD have no content
+            decoder.read(ByteBuffer.allocate(1024));
+        }
+
+        @Override
+        protected HttpResponse buildResult(HttpContext context) {
+            return response;
+        }
+
+        @Override
+        protected void releaseResources() {
+        }
+    }
+
+    /**
+     * Fails the exchange of a stopped or split segment, so its connection is closed.
+     */
+    private static final class StoppedException extends IOException {
+    }
+
+    /**
+     * Carries {@link RetryLaterException} through the client which only fails exchanges with {@link IOException}.
+     */
+    private static final class RetryLaterIOException extends IOException {
+        private RetryLaterIOException(RetryLaterException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized RetryLaterException getCause() {
+            return (RetryLaterException) super.getCause();
+        }
+    }
+
+    /**
+     * Carries {@link ContentChangedException} through the client.
+     */
+    private static final class ContentChangedIOException extends IOException {
+        private ContentChangedIOException(ContentChangedException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized ContentChangedException getCause() {
+            return (ContentChangedException) super.getCause();
+        }
+    }
+
+    /**
+     * Carries {@link RangesIgnoredException} through the client.
+     */
+    private static final class RangesIgnoredIOException extends IOException {
+        private RangesIgnoredIOException(RangesIgnoredException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized RangesIgnoredException getCause() {
+            return (RangesIgnoredException) super.getCause();
+        }
+    }
+}
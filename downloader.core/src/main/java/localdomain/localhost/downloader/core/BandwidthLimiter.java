@@ -0,0 +1,66 @@
+package localdomain.localhost.downloader.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting transfer rate. Transfer loops reserve tokens for every buffer and wait
+ * for returned time. Tokens may go into debt, so callers are served in order of reservation
+ * and concurrent segments share the rate fairly.
+ *
+ * Rate can be changed at any time, new rate applies to the next reservation.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class BandwidthLimiter {
+    static final long UNLIMITED = 0;
+    /**
+     * Bucket capacity in seconds of transfer, allows short bursts after idle periods.
+     */
+    private static final double BURST_SECONDS = 0.1;
+
+    private volatile long rate;
+    private double tokens;
+    private long lastRefill;
+
+    BandwidthLimiter(long rate) {
+        setRate(rate);
+    }
+
+    long getRate() {
+        return rate;
+    }
+
+    /**
+     * @param rate bytes per second or {@link #UNLIMITED}.
+     */
+    synchronized void setRate(long rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("Rate should not be negative: " + rate);
+        }
+        this.rate = rate;
+        this.tokens = rate * BURST_SECONDS;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Reserves tokens for transfer of {@code bytes}.
+     * @return nanoseconds to wait before transfer.
+     */
+    long reserve(int bytes) {
+        // no locking for unlimited limiters, it's the common case
+        return rate == UNLIMITED ? 0 : reserve(bytes, System.nanoTime());
+    }
+
+    synchronized long reserve(int bytes, long now) {
+        long rate = this.rate;
+        if (rate == UNLIMITED) {
+            return 0;
+        }
+        double capacity = rate * BURST_SECONDS;
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+}
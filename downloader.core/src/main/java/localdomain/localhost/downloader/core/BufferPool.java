@@ -0,0 +1,48 @@
+package localdomain.localhost.downloader.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Per-thread transfer buffers, so transfer loops don't allocate a buffer for every request and retry.
+ *
+ * Buffers are heap ones: responses are only available as {@link java.io.InputStream}s which need an array
+ * to read into, and {@link java.nio.channels.FileChannel} writes of heap buffers already go through
+ * a per-thread direct buffer cached by JDK.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class BufferPool {
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<>();
+    private volatile int bufferSize;
+
+    BufferPool(int bufferSize) {
+        setBufferSize(bufferSize);
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Changes size of buffers, existing buffers are replaced when they're acquired next time.
+     */
+    void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size should be positive: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return cleared buffer of current thread, it shouldn't be passed to other threads.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.get();
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            buffer = ByteBuffer.allocate(bufferSize);
+            buffers.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+}
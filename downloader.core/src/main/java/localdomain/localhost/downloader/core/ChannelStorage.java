@@ -0,0 +1,64 @@
+package localdomain.localhost.downloader.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link DownloadStorage} performing positional writes through a single shared {@link FileChannel}.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class ChannelStorage implements DownloadStorage {
+    private final String filename;
+    private volatile FileChannel channel;
+
+    ChannelStorage(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * Channel may be closed asynchronously (e.g. by interrupt), so it's reopened on demand.
+     */
+    FileChannel getChannel() throws IOException {
+        // every write gets the channel, so parts don't contend on the monitor while it's open
+        FileChannel channel = this.channel;
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+        synchronized (this) {
+            channel = this.channel;
+            if (channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                this.channel = channel;
+            }
+            return channel;
+        }
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer source) throws IOException {
+        FileChannel channel = getChannel();
+        long position = offset;
+        while (source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+    }
+
+    @Override
+    public synchronized void close(boolean force) throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            if (force && channel.isOpen()) {
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package localdomain.localhost.downloader.core;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Expected digest of downloaded bytes, either announced by server or supplied by user.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+final class Checksum {
+    /**
+     * Supported algorithms by preference, names used in HTTP digest fields to names of {@link MessageDigest}.
+     */
+    private static final String[][] ALGORITHMS = {
+            { "sha-512", "SHA-512" },
+            { "sha-256", "SHA-256" },
+            { "sha", "SHA-1" },
+            { "md5", "MD5" },
+    };
+
+    private final String algorithm;
+    private final byte[] value;
+
+    Checksum(String algorithm, byte[] value) {
+        this.algorithm = algorithm;
+        this.value = value;
+    }
+
+    /**
+     * @param hex SHA-256 digest in hexadecimal.
+     * @throws IllegalArgumentException if the digest is malformed.
+     */
+    static Checksum sha256(String hex) {
+        if (hex.length() != 64) {
+            throw new IllegalArgumentException("SHA-256 digest should have 64 hex digits: " + hex);
+        }
+        byte[] value = new byte[32];
+        for (int i = 0; i < value.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Not a hex digest: " + hex);
+            }
+            value[i] = (byte) (high << 4 | low);
+        }
+        return new Checksum("SHA-256", value);
+    }
+
+    /**
+     * @return digest of the whole file announced by {@code Repr-Digest}, {@code Digest} or {@code Content-MD5}
+     * of a complete response, or {@code null}.
+     */
+    static Checksum ofRepresentation(HttpResponse response) {
+        Checksum checksum = parse(response.getFirstHeader("Repr-Digest"));
+        if (checksum == null) {
+            checksum = parse(response.getFirstHeader("Digest"));
+        }
+        if (checksum == null && response.getStatusLine().getStatusCode() == 200) {
+            checksum = parseContentMd5(response.getFirstHeader("Content-MD5"));
+        }
+        return checksum;
+    }
+
+    /**
+     * @return digest of the response content announced by {@code Content-Digest} or {@code Content-MD5},
+     * which is a digest of the part for ranged responses, or {@code null}.
+     */
+    static Checksum ofContent(HttpResponse response) {
+        Checksum checksum = parse(response.getFirstHeader("Content-Digest"));
+        return checksum != null ? checksum : parseContentMd5(response.getFirstHeader("Content-MD5"));
+    }
+
+    /**
+     * Parses digest fields of RFC 9530 ({@code sha-256=:base64:}) and RFC 3230 ({@code SHA-256=base64}).
+     * @return the strongest supported digest or {@code null}.
+     */
+    static Checksum parse(Header header) {
+        if (header == null) {
+            return null;
+        }
+        Map<String, String> values = new HashMap<>();
+        for (String element : header.getValue().split(",")) {
+            int separator = element.indexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+            String name = element.substring(0, separator).trim().toLowerCase(Locale.ROOT);
+            String value = element.substring(separator + 1).trim();
+            if (value.length() > 1 && value.startsWith(":") && value.endsWith(":")) {
+                // byte sequence of a structured field
+                value = value.substring(1, value.length() - 1);
+            }
+            values.put(name, value);
+        }
+        for (String[] algorithm : ALGORITHMS) {
+            String value = values.get(algorithm[0]);
+            if (value != null) {
+                try {
+                    return new Checksum(algorithm[1], Base64.getDecoder().decode(value));
+                } catch (IllegalArgumentException ignored) {
+                    // malformed value, trying weaker ones
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Checksum parseContentMd5(Header header) {
+        if (header == null) {
+            return null;
+        }
+        try {
+            return new Checksum("MD5", Base64.getDecoder().decode(header.getValue().trim()));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    String getAlgorithm() {
+        return algorithm;
+    }
+
+    MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // every supported algorithm is required to be present in Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    boolean matches(byte[] digest) {
+        return MessageDigest.isEqual(value, digest);
+    }
+}
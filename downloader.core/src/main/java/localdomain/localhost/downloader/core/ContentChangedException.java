@@ -0,0 +1,13 @@
+package localdomain.localhost.downloader.core;
+
+/**
+ * Thrown when server sends the whole file instead of a requested range and its validators differ,
+ * which means the file was changed since it was prepared, see {@code If-Range}.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class ContentChangedException extends Exception {
+    ContentChangedException(String message) {
+        super(message);
+    }
+}
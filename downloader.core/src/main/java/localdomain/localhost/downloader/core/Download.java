@@ -1,5 +1,7 @@
 package localdomain.localhost.downloader.core;
 
+import java.io.IOException;
+import java.net.URI;
 import java.util.List;
 
 /**
@@ -16,15 +18,46 @@ public class Download {
     /**
      * Magic value for files with unknown size.
      */
-    public static final int UNKNOWN_SIZE = -1;
+    public static final long UNKNOWN_SIZE = -1;
 
     private final String url;
+    /**
+     * Host of {@link #url}, the scheduler looks it up for every segment.
+     */
+    private final String host;
     private State state = State.New;
+    private volatile Priority priority = Priority.Normal;
     private MultipartProgress progress;
     private String filename;
+    private boolean rangesSupported = true;
+    private String etag;
+    private String lastModified;
+    private final BandwidthLimiter limiter = new BandwidthLimiter(BandwidthLimiter.UNLIMITED);
+    /**
+     * Storage and journal are read on every chunk written by every part, so they're volatile rather than guarded.
+     */
+    private volatile DownloadStorage storage;
+    private volatile ProgressJournal journal;
+    /**
+     * Digest of the file supplied by user, it's verified even if verification is disabled.
+     */
+    private volatile Checksum checksum;
+    private volatile StreamingDigest digest;
+    private volatile FileAllocator allocator;
+    private final DownloadMetrics metrics;
 
     Download(String url) {
+        this(url, null);
+    }
+
+    /**
+     * @param parent metrics of the downloader which totals metrics of this download, may be {@code null}.
+     */
+    Download(String url, DownloaderMetrics parent) {
         this.url = url;
+        String host = URI.create(url).getHost();
+        this.host = host != null ? host : "";
+        this.metrics = new DownloadMetrics(this, parent);
     }
 
     /**
@@ -34,6 +67,13 @@ public class Download {
         return url;
     }
 
+    /**
+     * @return host part of {@link #url} or empty string if there is none.
+     */
+    String getHost() {
+        return host;
+    }
+
     /**
      * @return {@link State} in which current download is.
      */
@@ -45,10 +85,67 @@ public class Download {
         this.state = state;
     }
 
+    /**
+     * @return {@link Priority} of the download, {@link Priority#Normal} by default.
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+
+    void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
     void addProgress(long offset, long length) {
         progress.addProgress(offset, length);
     }
 
+    MultipartProgress.Cursor openCursor(long from, long to) {
+        return progress.openCursor(from, to);
+    }
+
+    MultipartProgress.ProgressPart splitLargestPart(long minSize) {
+        return progress.splitLargest(minSize);
+    }
+
+    void closeCursor(MultipartProgress.Cursor cursor) {
+        progress.closeCursor(cursor);
+    }
+
+    void writeFree(long from, long to, MultipartProgress.RangeWriter writer) throws IOException {
+        progress.writeFree(from, to, writer);
+    }
+
+    void stopCursors() {
+        progress.stopCursors();
+    }
+
+    void rewindCursor(MultipartProgress.Cursor cursor, long position) {
+        progress.rewind(cursor, position);
+    }
+
+    /**
+     * Sets size of the file when its end is found, see {@link MultipartProgress#limitSize(long)}.
+     */
+    boolean limitSize(long size) {
+        return progress.limitSize(size);
+    }
+
+    /**
+     * @return whether size of the file wasn't known when the download started, so its end is found while it's downloaded.
+     */
+    boolean isOpenEnded() {
+        return progress != null && progress.isOpenEnded();
+    }
+
+    long getCompletedEnd(long offset) {
+        return progress.getCompletedEnd(offset);
+    }
+
+    long getCompletedStart(long offset) {
+        return progress.getCompletedStart(offset);
+    }
+
     /**
      * @return size of current download in bytes or {@link #UNKNOWN_SIZE} if unknown.
      */
@@ -77,6 +174,13 @@ public class Download {
         return progress == null ? null : progress.isComplete();
     }
 
+    /**
+     * @return list of parts which are already downloaded.
+     */
+    public List<MultipartProgress.ProgressPart> getCompletedParts() {
+        return progress.getCompletedParts();
+    }
+
     /**
      * @return list of parts which aren't downloaded yet.
      */
@@ -85,7 +189,14 @@ public class Download {
     }
 
     void setSize(long size) {
-        this.progress = new MultipartProgress(size);
+        this.progress = new MultipartProgress(size, metrics);
+    }
+
+    /**
+     * @return counters and histograms of this download, they are kept after the download is finished.
+     */
+    public DownloadMetrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -99,10 +210,131 @@ public class Download {
         this.filename = filename;
     }
 
+    /**
+     * @return whether server is able to send parts of the file.
+     */
+    public boolean isRangesSupported() {
+        return rangesSupported;
+    }
+
+    void setRangesSupported(boolean rangesSupported) {
+        this.rangesSupported = rangesSupported;
+    }
+
+    /**
+     * @return value of {@code ETag} header returned by server or {@code null}.
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    void setETag(String etag) {
+        this.etag = etag;
+    }
+
+    /**
+     * @return value of {@code Last-Modified} header returned by server or {@code null}.
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return bandwidth limit of current download in bytes per second, 0 if unlimited.
+     */
+    public long getBandwidthLimit() {
+        return limiter.getRate();
+    }
+
+    /**
+     * Limits bandwidth used by current download, may be changed while download is running.
+     * @param bytesPerSecond limit or 0 to remove it.
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        limiter.setRate(bytesPerSecond);
+    }
+
+    BandwidthLimiter getLimiter() {
+        return limiter;
+    }
+
+    ProgressJournal getJournal() {
+        return journal;
+    }
+
+    void setJournal(ProgressJournal journal) {
+        this.journal = journal;
+    }
+
+    Checksum getChecksum() {
+        return checksum;
+    }
+
+    void setChecksum(Checksum checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return digest of the file being downloaded or {@code null} if it isn't verified.
+     */
+    StreamingDigest getDigest() {
+        return digest;
+    }
+
+    void setDigest(StreamingDigest digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * @return allocation of disk space for the file in progress or {@code null}.
+     */
+    FileAllocator getAllocator() {
+        return allocator;
+    }
+
+    void setAllocator(FileAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    /**
+     * @return storage shared by all parts of current download.
+     */
+    DownloadStorage getStorage() {
+        return storage;
+    }
+
+    void setStorage(DownloadStorage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Closes storage if it's set.
+     * @param force whether written content should be flushed to the storage device before closing.
+     */
+    void closeStorage(boolean force) throws IOException {
+        DownloadStorage storage = this.storage;
+        if (storage != null) {
+            storage.close(force);
+        }
+    }
+
     public enum State {
         New,
         Ready,
         Finished,
         Error
     }
+
+    /**
+     * Downloads with higher priority are served first, see {@link Downloader#setPriority(Download, Priority)}.
+     */
+    public enum Priority {
+        Low,
+        Normal,
+        High
+    }
 }
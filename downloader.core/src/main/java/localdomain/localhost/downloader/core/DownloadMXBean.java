@@ -0,0 +1,35 @@
+package localdomain.localhost.downloader.core;
+
+/**
+ * Metrics of a download exported through JMX, see {@link Downloader#registerMBeans(String)}.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public interface DownloadMXBean {
+    long getBytesReceived();
+
+    /**
+     * @return smoothed rate since the previous call.
+     */
+    double getBytesPerSecond();
+
+    int getActiveSegments();
+
+    long getSegmentsFinished();
+
+    long getRetries();
+
+    double getTimeToFirstByteMeanMillis();
+
+    double getTimeToFirstByteP99Millis();
+
+    double getSegmentDurationMeanMillis();
+
+    double getSegmentDurationP99Millis();
+
+    long getSyncs();
+
+    double getBytesPerSyncMean();
+
+    double getProgressBlockedMillis();
+}
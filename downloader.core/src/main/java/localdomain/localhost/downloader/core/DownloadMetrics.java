@@ -0,0 +1,193 @@
+package localdomain.localhost.downloader.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of a download. They are updated by transfer threads without locking and are added to
+ * totals of the {@link DownloaderMetrics} the download belongs to. Durations are in nanoseconds.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public class DownloadMetrics implements DownloadMXBean {
+    private static final double SMOOTHING = 0.3;
+
+    private final Download download;
+    private final DownloaderMetrics parent;
+    final LongAdder bytesReceived = new LongAdder();
+    final AtomicInteger activeSegments = new AtomicInteger();
+    final LongAdder retries = new LongAdder();
+    final LongAdder progressBlocked = new LongAdder();
+    final Histogram timeToFirstByte = new Histogram();
+    final Histogram segmentDuration = new Histogram();
+    final Histogram bytesPerSync = new Histogram();
+
+    private long syncedBytes;
+    private long sampledBytes;
+    private long sampledTime = System.nanoTime();
+    private double rate;
+
+    /**
+     * @param parent totals of the downloader or {@code null} for a download which isn't managed by one.
+     */
+    DownloadMetrics(Download download, DownloaderMetrics parent) {
+        this.download = download;
+        this.parent = parent;
+    }
+
+    void bytesReceived(int bytes) {
+        bytesReceived.add(bytes);
+        if (parent != null) {
+            parent.bytesReceived(download, bytes);
+        }
+    }
+
+    void responseReceived(long nanos) {
+        timeToFirstByte.record(nanos);
+        if (parent != null) {
+            parent.responseReceived(download, nanos);
+        }
+    }
+
+    void segmentStarted() {
+        activeSegments.incrementAndGet();
+        if (parent != null) {
+            parent.segmentStarted(download);
+        }
+    }
+
+    void segmentFinished(long nanos) {
+        activeSegments.decrementAndGet();
+        segmentDuration.record(nanos);
+        if (parent != null) {
+            parent.segmentFinished(download, nanos);
+        }
+    }
+
+    void retried() {
+        retries.increment();
+        if (parent != null) {
+            parent.retried(download);
+        }
+    }
+
+    /**
+     * Records a flush of the file to the storage device, it covers bytes received since the previous one.
+     */
+    void synced() {
+        long bytes;
+        synchronized (this) {
+            long received = bytesReceived.sum();
+            bytes = received - syncedBytes;
+            syncedBytes = received;
+        }
+        bytesPerSync.record(bytes);
+        if (parent != null) {
+            parent.synced(download, bytes);
+        }
+    }
+
+    void progressBlocked(long nanos) {
+        progressBlocked.add(nanos);
+        if (parent != null) {
+            parent.progressBlocked(download, nanos);
+        }
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public synchronized double getBytesPerSecond() {
+        long received = bytesReceived.sum();
+        long time = System.nanoTime();
+        if (time > sampledTime) {
+            double current = Math.max(0, received - sampledBytes) * 1e9 / (time - sampledTime);
+            rate = rate == 0 ? current : rate + SMOOTHING * (current - rate);
+            sampledBytes = received;
+            sampledTime = time;
+        }
+        return rate;
+    }
+
+    @Override
+    public int getActiveSegments() {
+        return activeSegments.get();
+    }
+
+    @Override
+    public long getSegmentsFinished() {
+        return segmentDuration.getCount();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return time from sending requests to receiving response headers.
+     */
+    public Histogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    @Override
+    public double getTimeToFirstByteMeanMillis() {
+        return timeToFirstByte.getMean() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public double getTimeToFirstByteP99Millis() {
+        return timeToFirstByte.getPercentile(0.99) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return time from starting to finishing segments, including failed ones.
+     */
+    public Histogram getSegmentDuration() {
+        return segmentDuration;
+    }
+
+    @Override
+    public double getSegmentDurationMeanMillis() {
+        return segmentDuration.getMean() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public double getSegmentDurationP99Millis() {
+        return segmentDuration.getPercentile(0.99) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return bytes received between flushes of files to the storage device, see {@link Downloader#setForceOnFinish(boolean)}.
+     */
+    public Histogram getBytesPerSync() {
+        return bytesPerSync;
+    }
+
+    @Override
+    public long getSyncs() {
+        return bytesPerSync.getCount();
+    }
+
+    @Override
+    public double getBytesPerSyncMean() {
+        return bytesPerSync.getMean();
+    }
+
+    /**
+     * @return total time transfer threads spent waiting for locks of {@link MultipartProgress}.
+     */
+    public long getProgressBlockedNanos() {
+        return progressBlocked.sum();
+    }
+
+    @Override
+    public double getProgressBlockedMillis() {
+        return progressBlocked.sum() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,846 @@
+package localdomain.localhost.downloader.core;
+
+import org.apache.http.HttpResponse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of work for downloader workers. Scheduled downloads are grouped by host, every worker takes
+ * one {@link Segment} at a time and hosts are served round-robin, so a host with many big files
+ * can't occupy all workers. Number of concurrent connections to a host may be limited and a host
+ * may be backed off for a while, e.g. after {@code 429 Too Many Requests} response.
+ * <p>
+ * Segments of downloads with higher {@link Download.Priority} are always served first, downloads of the same
+ * priority are served in the order they were scheduled, see {@link #moveToFront(Download)}. Number of active
+ * downloads may be limited, then only the first downloads in this order get segments.
+ * <p>
+ * When nothing is queued, idle workers split the largest in-flight part of a download instead of waiting.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class DownloadScheduler {
+    /**
+     * Idle workers wake up this often to look for in-flight parts worth splitting.
+     */
+    private static final long STEAL_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    private final SegmentPlanner planner;
+    /**
+     * Workers may be virtual threads, they shouldn't wait on monitors which pin carrier threads.
+     */
+    private final Lock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<Download, Entry> entries = new HashMap<>();
+    private final Map<String, Host> hostsByName = new HashMap<>();
+    private final List<Host> hosts = new ArrayList<>();
+    /**
+     * Scheduled downloads ordered by priority and then by order.
+     */
+    private final List<Entry> queue = new ArrayList<>();
+    private boolean sorted = true;
+    private long firstOrder = 0;
+    private long nextOrder = 0;
+    /**
+     * Index of the host to be served first by the next {@link #take(int)}.
+     */
+    private int nextHost;
+    private int maxConnectionsPerHost = 0;
+    private int maxActiveDownloads = 0;
+    /**
+     * Number of downloads released by their last segments, but not finished yet.
+     */
+    private int finishing;
+    private int workersNumber;
+    private int concurrency = 1;
+    private int workers;
+    /**
+     * Number of workers which should stop, but haven't claimed it by {@link #tryRetire(Segment)} yet, negative
+     * if workers are missing. It's updated under the lock, but claimed without it, so busy workers check it
+     * after every chunk for the price of a volatile read.
+     */
+    private final AtomicInteger surplus = new AtomicInteger();
+    private int generation;
+
+    DownloadScheduler(SegmentPlanner planner) {
+        this.planner = planner;
+    }
+
+    /**
+     * @param maxConnectionsPerHost limit or 0 to remove it.
+     */
+    void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        lock.lock();
+        try {
+            this.maxConnectionsPerHost = maxConnectionsPerHost;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getMaxConnectionsPerHost() {
+        lock.lock();
+        try {
+            return maxConnectionsPerHost;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param maxActiveDownloads limit or 0 to remove it.
+     */
+    void setMaxActiveDownloads(int maxActiveDownloads) {
+        lock.lock();
+        try {
+            this.maxActiveDownloads = maxActiveDownloads;
+            sorted = false;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getMaxActiveDownloads() {
+        lock.lock();
+        try {
+            return maxActiveDownloads;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of downloads with segments in progress.
+     */
+    int getActiveDownloads() {
+        lock.lock();
+        try {
+            int active = 0;
+            for (Entry entry : queue) {
+                if (entry.active > 0) {
+                    active++;
+                }
+            }
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of segments waiting for workers, every unassigned range is counted as one segment.
+     */
+    int getQueuedSegments() {
+        lock.lock();
+        try {
+            int queued = 0;
+            for (Entry entry : queue) {
+                if (entry.failed || entry.cancelled) {
+                    continue;
+                }
+                if (!entry.prepared) {
+                    queued += entry.active == 0 ? 1 : 0;
+                } else if (entry.sequential) {
+                    queued += entry.started ? 0 : 1;
+                } else {
+                    queued += entry.unassigned.size();
+                }
+            }
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies changed priorities of scheduled downloads.
+     */
+    void reorder() {
+        lock.lock();
+        try {
+            sorted = false;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Serves download before other scheduled downloads of the same priority.
+     */
+    void moveToFront(Download download) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(download);
+            if (entry != null) {
+                entry.order = --firstOrder;
+                reorder();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets number of workers which should take segments. Missing workers may be added right away,
+     * surplus ones stop on their next {@link #take(int)} or after their current chunk, see {@link #tryRetire(Segment)}.
+     */
+    void setWorkersNumber(int workersNumber) {
+        lock.lock();
+        try {
+            surplus.addAndGet(this.workersNumber - workersNumber);
+            this.workersNumber = workersNumber;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets number of segments downloaded at once, it's used to plan segment sizes.
+     */
+    void setConcurrency(int concurrency) {
+        lock.lock();
+        try {
+            this.concurrency = concurrency;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Claims a stop of one surplus worker, so when workers number is reduced by N, exactly N workers stop.
+     * The worker of the segment should stop after its current chunk and release the rest of the segment,
+     * it's forgotten when the segment is released.
+     * @return whether the worker of the segment should stop.
+     */
+    boolean tryRetire(Segment segment) {
+        if (!claimSurplus()) {
+            return false;
+        }
+        segment.retired = true;
+        return true;
+    }
+
+    private boolean claimSurplus() {
+        int current;
+        do {
+            current = surplus.get();
+            if (current <= 0) {
+                return false;
+            }
+        } while (!surplus.compareAndSet(current, current - 1));
+        return true;
+    }
+
+    /**
+     * Registers a new worker if there are less workers than needed.
+     * @return generation the worker belongs to or -1 if no more workers are needed.
+     */
+    int addWorker() {
+        lock.lock();
+        try {
+            // workers which claimed their stop aren't counted
+            if (surplus.get() >= 0) {
+                return -1;
+            }
+            workers++;
+            surplus.incrementAndGet();
+            return generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets all workers, they get no more segments from {@link #take(int)}. Used when workers are
+     * interrupted, so new ones may be started right away.
+     */
+    void resetWorkers() {
+        lock.lock();
+        try {
+            generation++;
+            workers = 0;
+            surplus.set(-workersNumber);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Schedules download if it isn't scheduled yet.
+     * @return whether download was scheduled.
+     */
+    boolean submit(Download download) {
+        lock.lock();
+        try {
+            if (entries.containsKey(download)) {
+                return false;
+            }
+            Host host = hostsByName.get(download.getHost());
+            if (host == null) {
+                host = new Host(download.getHost());
+                hostsByName.put(host.name, host);
+                hosts.add(host);
+            }
+            Entry entry = new Entry(download, host, nextOrder++);
+            entries.put(download, entry);
+            host.entries.add(entry);
+            queue.add(entry);
+            reorder();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next segment to download.
+     * @param generation generation of the worker, see {@link #addWorker()}.
+     * @return segment or {@code null} if the worker should stop, either stale or surplus.
+     */
+    Segment take(int generation) {
+        lock.lock();
+        try {
+            while (generation == this.generation) {
+                if (claimSurplus()) {
+                    // workers number was reduced
+                    workers--;
+                    return null;
+                }
+                sort();
+                Segment segment = next(System.nanoTime());
+                if (segment != null) {
+                    segment.generation = generation;
+                    segment.entry.active++;
+                    segment.entry.host.active++;
+                    return segment;
+                }
+                try {
+                    long timeout = getWaitTimeout();
+                    if (timeout == 0) {
+                        changed.await();
+                    } else {
+                        changed.await(timeout, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if (generation == this.generation) {
+                        workers--;
+                        surplus.decrementAndGet();
+                    }
+                    return null;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sort() {
+        if (sorted) {
+            return;
+        }
+        for (Entry entry : queue) {
+            // priority may be changed concurrently, it's captured so the order stays consistent
+            entry.priority = entry.download.getPriority();
+        }
+        queue.sort(null);
+        for (int i = 0; i < queue.size(); i++) {
+            queue.get(i).eligible = maxActiveDownloads == 0 || i < maxActiveDownloads;
+        }
+        for (Host host : hosts) {
+            host.entries.sort(null);
+        }
+        sorted = true;
+    }
+
+    private Segment next(long now) {
+        Download.Priority[] priorities = Download.Priority.values();
+        for (int i = priorities.length - 1; i >= 0; i--) {
+            Segment segment = next(now, priorities[i], false);
+            if (segment == null) {
+                // nothing is queued, helping with the largest in-flight part instead of waiting for it
+                segment = next(now, priorities[i], true);
+            }
+            if (segment != null) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private Segment next(long now, Download.Priority priority, boolean steal) {
+        int size = hosts.size();
+        for (int i = 0; i < size; i++) {
+            Host host = hosts.get((nextHost + i) % size);
+            if (!isAvailable(host, now)) {
+                continue;
+            }
+            for (Entry entry : host.entries) {
+                if (entry.priority.compareTo(priority) < 0) {
+                    break;
+                }
+                if (entry.priority != priority || !entry.eligible) {
+                    continue;
+                }
+                Segment segment = steal ? entry.steal() : entry.next();
+                if (segment != null) {
+                    nextHost = (nextHost + i + 1) % size;
+                    return segment;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean isAvailable(Host host, long now) {
+        return now - host.backoffUntil >= 0 && (maxConnectionsPerHost == 0 || host.active < maxConnectionsPerHost);
+    }
+
+    private long getWaitTimeout() {
+        long timeout = 0;
+        long now = System.nanoTime();
+        for (Host host : hosts) {
+            if (host.backoffUntil - now > 0) {
+                long backoff = Math.max(1, TimeUnit.NANOSECONDS.toMillis(host.backoffUntil - now));
+                timeout = timeout == 0 ? backoff : Math.min(timeout, backoff);
+            }
+            if (host.active > 0) {
+                timeout = timeout == 0 ? STEAL_INTERVAL : Math.min(timeout, STEAL_INTERVAL);
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * Sets download up for downloading its missing parts after {@link Segment.Type#Prepare} segment is done.
+     * @param sequential whether the download can't be split into parts.
+     * @param response response which body is the beginning of the file or {@code null}.
+     */
+    void prepared(Segment segment, boolean sequential, HttpResponse response) {
+        lock.lock();
+        try {
+            Entry entry = segment.entry;
+            entry.prepared(sequential);
+            if (sequential || (!entry.unassigned.isEmpty() && entry.unassigned.firstKey() == 0)) {
+                entry.response = response;
+            } else {
+                // beginning of the file is already downloaded
+                Downloader.release(response);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Downloads the file of the segment again from scratch, because it was changed on server. No more parts
+     * are started, the download is prepared again once segments in progress are released.
+     * @return number of times the download was restarted since it was scheduled.
+     */
+    int restart(Segment segment) {
+        lock.lock();
+        try {
+            Entry entry = segment.entry;
+            if (!entry.restarting && !entry.failed && !entry.cancelled) {
+                entry.restarting = true;
+                entry.restarts++;
+                entry.unassigned.clear();
+                Downloader.release(entry.takeResponse());
+            }
+            return entry.restarts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Downloads the rest of the file of the segment sequentially, because server ignores ranges. No more parts
+     * are started, remaining ranges of parts in progress are dropped when they're released.
+     */
+    void sequential(Segment segment) {
+        lock.lock();
+        try {
+            Entry entry = segment.entry;
+            if (!entry.sequential && !entry.restarting && !entry.failed && !entry.cancelled) {
+                entry.sequential = true;
+                entry.started = false;
+                entry.unassigned.clear();
+                Downloader.release(entry.takeResponse());
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops unassigned ranges after the end of the file, it's called when the end of a file with unknown size is found.
+     */
+    void truncate(Segment segment, long size) {
+        lock.lock();
+        try {
+            TreeMap<Long, Long> unassigned = segment.entry.unassigned;
+            unassigned.tailMap(size, true).clear();
+            Map.Entry<Long, Long> last = unassigned.lastEntry();
+            if (last != null && last.getValue() > size) {
+                unassigned.put(last.getKey(), size);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Backs off host of the segment, it gets no new segments for a while.
+     */
+    void backoff(Segment segment, long delay, TimeUnit unit) {
+        lock.lock();
+        try {
+            Host host = segment.entry.host;
+            long until = System.nanoTime() + unit.toNanos(delay);
+            if (until - host.backoffUntil > 0) {
+                host.backoffUntil = until;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks segment as done.
+     * @param remainingFrom start of the range which wasn't downloaded and should be scheduled again.
+     * @param remainingTo end of the range which wasn't downloaded.
+     * @param failed whether the download failed, then its other segments aren't started.
+     * @return download if it has no more work, it should be finished by the caller, see {@link #finished(Download)},
+     * or {@code null}.
+     */
+    Download release(Segment segment, long remainingFrom, long remainingTo, boolean failed) {
+        lock.lock();
+        try {
+            Entry entry = segment.entry;
+            entry.active--;
+            entry.host.active--;
+            if (segment.retired && segment.generation == generation) {
+                // its stop is already claimed, see tryRetire
+                workers--;
+            }
+            if (failed) {
+                entry.failed = true;
+            } else if (entry.restarting) {
+                // remaining ranges belong to the old file
+                if (entry.active == 0) {
+                    entry.restarting = false;
+                    entry.prepared = false;
+                    entry.started = false;
+                }
+            } else if (remainingFrom < remainingTo && !entry.cancelled) {
+                long size = entry.download.getSize();
+                if (segment.type == Segment.Type.Part && !entry.sequential
+                        && (size == Download.UNKNOWN_SIZE || remainingFrom < size)) {
+                    entry.unassigned.put(remainingFrom, size == Download.UNKNOWN_SIZE ? remainingTo : Math.min(remainingTo, size));
+                } else if (segment.type == Segment.Type.Sequential) {
+                    entry.started = false;
+                }
+            }
+            changed.signalAll();
+
+            if (entry.active > 0 || !entry.isDone()) {
+                return null;
+            }
+            remove(entry);
+            finishing++;
+            return entry.download;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unschedules all downloads. Segments in progress may still be released.
+     * @return downloads without segments in progress, they should be finished by the caller.
+     */
+    List<Download> clear() {
+        lock.lock();
+        try {
+            List<Download> idle = new ArrayList<>();
+            for (Entry entry : new ArrayList<>(entries.values())) {
+                // entries with segments in progress are finished when the last one is released
+                entry.cancelled = true;
+                remove(entry);
+                if (entry.active == 0) {
+                    idle.add(entry.download);
+                }
+            }
+            return idle;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.download, entry);
+        if (queue.remove(entry) && maxActiveDownloads != 0) {
+            // the next download in order may become active
+            sorted = false;
+        }
+        Host host = entry.host;
+        host.entries.remove(entry);
+        if (entry.response != null) {
+            Downloader.release(entry.response);
+            entry.response = null;
+        }
+        if (host.entries.isEmpty() && host.active == 0 && hostsByName.get(host.name) == host) {
+            int index = hosts.indexOf(host);
+            hosts.remove(index);
+            hostsByName.remove(host.name);
+            if (nextHost > index) {
+                nextHost--;
+            }
+            if (nextHost >= hosts.size()) {
+                nextHost = 0;
+            }
+        }
+        changed.signalAll();
+    }
+
+    /**
+     * Notifies that download returned by {@link #release(Segment, long, long, boolean)} is finished.
+     */
+    void finished(Download download) {
+        lock.lock();
+        try {
+            finishing--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until all scheduled downloads are finished.
+     */
+    void awaitIdle() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!entries.isEmpty() || finishing > 0) {
+                changed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isScheduled(Download download) {
+        lock.lock();
+        try {
+            return entries.containsKey(download);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unit of work taken by a worker.
+     */
+    static final class Segment {
+        private final Type type;
+        private final Entry entry;
+        private final long from;
+        private final long to;
+        private final HttpResponse response;
+        private final boolean restart;
+        /**
+         * Generation of the worker which took the segment, see {@link #take(int)}.
+         */
+        private int generation;
+        private boolean retired;
+
+        private Segment(Type type, Entry entry, long from, long to, HttpResponse response) {
+            this.type = type;
+            this.entry = entry;
+            this.from = from;
+            this.to = to;
+            this.response = response;
+            this.restart = type == Type.Prepare && entry.restarts > 0;
+        }
+
+        Type getType() {
+            return type;
+        }
+
+        Download getDownload() {
+            return entry.download;
+        }
+
+        long getFrom() {
+            return from;
+        }
+
+        long getTo() {
+            return to;
+        }
+
+        /**
+         * @return response to read the segment from or {@code null} to request it.
+         */
+        HttpResponse getResponse() {
+            return response;
+        }
+
+        /**
+         * @return whether the segment prepares a download which was restarted, see {@link #restart(Segment)}.
+         */
+        boolean isRestart() {
+            return restart;
+        }
+
+        /**
+         * @return whether the worker of the segment should stop once the segment is released, see
+         * {@link #tryRetire(Segment)}.
+         */
+        boolean isRetired() {
+            return retired;
+        }
+
+        enum Type {
+            /**
+             * Determining size of the file, see {@link #prepared(Segment, boolean, HttpResponse)}.
+             */
+            Prepare,
+            /**
+             * Downloading the whole file with a single request.
+             */
+            Sequential,
+            /**
+             * Downloading a range of the file.
+             */
+            Part
+        }
+    }
+
+    private static final class Host {
+        private final String name;
+        private final List<Entry> entries = new ArrayList<>();
+        private int active;
+        private long backoffUntil;
+
+        private Host(String name) {
+            this.name = name;
+            this.backoffUntil = System.nanoTime();
+        }
+
+    }
+
+    private final class Entry implements Comparable<Entry> {
+        private final Download download;
+        private final Host host;
+        private long order;
+        private Download.Priority priority;
+        /**
+         * Whether the download may get segments, see {@link #setMaxActiveDownloads(int)}.
+         */
+        private boolean eligible;
+        /**
+         * Ranges which aren't assigned to workers yet.
+         */
+        private final TreeMap<Long, Long> unassigned = new TreeMap<>();
+        private int active;
+        private boolean prepared;
+        private boolean sequential;
+        private boolean started;
+        private boolean failed;
+        private boolean cancelled;
+        private boolean restarting;
+        private int restarts;
+        private HttpResponse response;
+
+        private Entry(Download download, Host host, long order) {
+            this.download = download;
+            this.host = host;
+            this.order = order;
+            this.priority = download.getPriority();
+            if (download.getState() == Download.State.Ready) {
+                prepared(!download.isRangesSupported());
+            }
+        }
+
+        private void prepared(boolean sequential) {
+            this.prepared = true;
+            this.sequential = sequential;
+            if (!sequential) {
+                for (MultipartProgress.ProgressPart part : download.getMissingParts()) {
+                    unassigned.put(part.getFrom(), part.getTo());
+                }
+            }
+        }
+
+        private boolean isDone() {
+            return failed || cancelled || (prepared && (sequential ? started : unassigned.isEmpty()));
+        }
+
+        private Segment next() {
+            if (failed || cancelled) {
+                return null;
+            }
+            if (!prepared) {
+                return active == 0 ? new Segment(Segment.Type.Prepare, this, 0, 0, null) : null;
+            }
+            if (sequential) {
+                if (started) {
+                    return null;
+                }
+                started = true;
+                return new Segment(Segment.Type.Sequential, this, 0, 0, takeResponse());
+            }
+
+            Map.Entry<Long, Long> range = unassigned.pollFirstEntry();
+            if (range == null) {
+                return null;
+            }
+            long from = range.getKey();
+            long to = range.getValue();
+            // planned lazily, so later segments benefit from throughput measured so far
+            long size = planner.getSegmentSize(host.name, download.getSize(), concurrency);
+            long end = to - from < size + size / 2 ? to : from + size;
+            if (end < to) {
+                unassigned.put(end, to);
+            }
+            return new Segment(Segment.Type.Part, this, from, end, from == 0 ? takeResponse() : null);
+        }
+
+        private Segment steal() {
+            if (failed || cancelled || restarting || !prepared || sequential || active == 0) {
+                return null;
+            }
+            MultipartProgress.ProgressPart part = download.splitLargestPart(SegmentPlanner.MIN_SEGMENT_SIZE);
+            return part != null ? new Segment(Segment.Type.Part, this, part.getFrom(), part.getTo(), null) : null;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int result = other.priority.compareTo(priority);
+            return result != 0 ? result : Long.compare(order, other.order);
+        }
+
+        private HttpResponse takeResponse() {
+            HttpResponse result = response;
+            response = null;
+            return result;
+        }
+    }
+}
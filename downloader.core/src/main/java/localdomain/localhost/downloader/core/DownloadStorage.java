@@ -0,0 +1,40 @@
+package localdomain.localhost.downloader.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Destination of downloaded bytes. Single instance is shared by all parts of a {@link Download},
+ * so implementations must support concurrent writes to non-overlapping regions.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+interface DownloadStorage {
+    /**
+     * Writes remaining bytes of {@code source} to the file starting at {@code offset}.
+     */
+    void write(long offset, ByteBuffer source) throws IOException;
+
+    /**
+     * Writes remaining bytes of {@code source} to the file starting at {@code offset} without blocking
+     * the calling thread, if storage supports it. Written synchronously by default.
+     * @return future completed when all bytes are written.
+     */
+    default CompletableFuture<Void> writeAsync(long offset, ByteBuffer source) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            write(offset, source);
+            result.complete(null);
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Releases underlying resources. Storage may be reused after closing, resources will be reacquired on demand.
+     * @param force whether written content should be flushed to the storage device first.
+     */
+    void close(boolean force) throws IOException;
+}
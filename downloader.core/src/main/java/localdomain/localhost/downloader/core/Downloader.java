@@ -4,268 +4,1634 @@ package localdomain.localhost.downloader.core;
 import org.apache.commons.io.FileUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.impl.execchain.RequestAbortedException;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.protocol.BasicHttpContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.channels.ClosedByInterruptException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * Class to be used for downloads. Supports queues of several files. Multiple threads are used for downloads.
  * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
  */
-public class Downloader {
+public class Downloader implements Closeable {
     private static Logger LOGGER = LoggerFactory.getLogger(Downloader.class);
     private static int MAX_RETRY_COUNT = 5;
     private static int BUFFER_SIZE = 4096 * 10;
-    private static long MIN_PART_SIZE = 10 * 1024 * 1024;
+    private static long IDLE_CONNECTION_TIMEOUT = 30;
+    private static int PROGRESS_EVENTS_RATE = 10;
+    /**
+     * Delay in seconds before retrying a host which asked to retry later without telling when.
+     */
+    private static long DEFAULT_RETRY_AFTER = 5;
+    private static String MBEAN_DOMAIN = "localdomain.localhost.downloader";
 
     private final File downloadDirectory;
     private final HttpClient client;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final SegmentPlanner planner = new SegmentPlanner();
+    private final DownloadScheduler scheduler = new DownloadScheduler(planner);
+    private final BufferPool buffers = new BufferPool(BUFFER_SIZE);
+    private final BandwidthLimiter limiter = new BandwidthLimiter(BandwidthLimiter.UNLIMITED);
+    private final Map<String, BandwidthLimiter> hostLimiters = new ConcurrentHashMap<>();
     private final List<Download> downloads = new ArrayList<>();
     private boolean running = false;
     private int threadsNumber;
-    private DownloaderEventHandler handler = new DownloaderEventHandler() {
+    private boolean forceOnFinish = false;
+    private WriteMode writeMode = WriteMode.Stream;
+    private volatile Preallocation preallocation = Preallocation.Sparse;
+    private boolean journalEnabled = true;
+    private boolean headRequestEnabled = true;
+    private boolean verificationEnabled = false;
+    private ExecutionMode executionMode = ExecutionMode.Pool;
+    private AsyncEngine asyncEngine;
+    private boolean dispatching = false;
+    private volatile DownloaderEventHandler handler = new DownloaderEventHandler() {
     };
+    private final ProgressDispatcher progressDispatcher =
+            new ProgressDispatcher((download, snapshot) -> handler.progressChanged(download, snapshot), PROGRESS_EVENTS_RATE);
+    private final DownloaderMetrics metrics = new DownloaderMetrics(this);
+    /**
+     * Name of registered MBeans or {@code null}, see {@link #registerMBeans(String)}.
+     */
+    private volatile String mbeansName;
+
+    ExecutorService pool;
+    /**
+     * Allocates files one by one, see {@link Preallocation#Full}.
+     */
+    private final ThreadPoolExecutor allocators = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), daemonThreads("downloader-allocator"));
+
+    /**
+     * Initializes instance.
+     * @param downloadDirectory Directory to save files in.
+     */
+    public Downloader(File downloadDirectory) {
+        this(downloadDirectory, new PoolingHttpClientConnectionManager());
+    }
+
+    private Downloader(File downloadDirectory, PoolingHttpClientConnectionManager connectionManager) {
+        this(downloadDirectory, HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS)
+                .build(), connectionManager);
+    }
+
+    Downloader(File downloadDirectory, HttpClient httpClient) {
+        this(downloadDirectory, httpClient, null);
+    }
+
+    private Downloader(File downloadDirectory, HttpClient httpClient, PoolingHttpClientConnectionManager connectionManager) {
+        this.downloadDirectory = downloadDirectory;
+        this.client = httpClient;
+        this.connectionManager = connectionManager;
+        allocators.allowCoreThreadTimeOut(true);
+        setThreadsNumber(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Resizes internal workers pool without interrupting transfers. New workers start right away, surplus ones
+     * stop after writing their current chunk and the rest of their parts is scheduled again. Connection pool
+     * limits are adjusted as well, so every worker can keep its own connection even when all downloads are
+     * from the same host.
+     * @param threadsNumber
+     */
+    public void setThreadsNumber(int threadsNumber) {
+        if (threadsNumber == this.threadsNumber) {
+            return;
+        }
+        if (connectionManager != null) {
+            connectionManager.setDefaultMaxPerRoute(threadsNumber);
+            // room for idle keep-alive connections to other hosts
+            connectionManager.setMaxTotal(threadsNumber * 2);
+        }
+        this.threadsNumber = threadsNumber;
+        scheduler.setConcurrency(threadsNumber);
+        if (asyncEngine != null) {
+            asyncEngine.setConcurrency(threadsNumber);
+        } else {
+            scheduler.setWorkersNumber(threadsNumber);
+        }
+        if (pool == null) {
+            pool = createPool();
+        }
+
+        restartAll();
+    }
+
+    /**
+     * Selects threads which run workers, see {@link ExecutionMode}. Segments in progress are interrupted
+     * and scheduled again.
+     * @throws UnsupportedOperationException if the mode isn't supported by the running JVM.
+     */
+    public void setExecutionMode(ExecutionMode executionMode) {
+        if (executionMode == this.executionMode) {
+            return;
+        }
+        if (!executionMode.isSupported()) {
+            throw new UnsupportedOperationException(executionMode + " execution mode requires Java 21 or later");
+        }
+        if (asyncEngine != null) {
+            asyncEngine.close();
+            asyncEngine = null;
+        }
+        if (executionMode == ExecutionMode.Async) {
+            try {
+                asyncEngine = new AsyncEngine(this, scheduler, planner, threadsNumber, buffers.getBufferSize());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        this.executionMode = executionMode;
+        // a single dispatcher takes segments in async mode
+        scheduler.setWorkersNumber(executionMode == ExecutionMode.Async ? 1 : threadsNumber);
+        stopWorkers(true);
+        restartAll();
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * Limits number of concurrent connections to a single host. Segments of downloads from other hosts are
+     * served meanwhile, hosts are served round-robin either way.
+     * @param maxConnectionsPerHost limit or 0 to remove it.
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        scheduler.setMaxConnectionsPerHost(maxConnectionsPerHost);
+    }
+
+    /**
+     * @return limit of concurrent connections to a single host, 0 if unlimited.
+     */
+    public int getMaxConnectionsPerHost() {
+        return scheduler.getMaxConnectionsPerHost();
+    }
+
+    /**
+     * Limits number of downloads in progress. Downloads with higher priority and then the ones closer to the
+     * front of the queue are downloaded first, others wait until they're finished.
+     * @param maxActiveDownloads limit or 0 to remove it.
+     * @see #setPriority(Download, Download.Priority)
+     * @see #moveToFront(Download)
+     */
+    public void setMaxActiveDownloads(int maxActiveDownloads) {
+        scheduler.setMaxActiveDownloads(maxActiveDownloads);
+    }
+
+    /**
+     * @return limit of downloads in progress, 0 if unlimited.
+     */
+    public int getMaxActiveDownloads() {
+        return scheduler.getMaxActiveDownloads();
+    }
+
+    /**
+     * Changes priority of the download, segments of downloads with higher priority are served first.
+     * May be changed while downloads are running.
+     */
+    public void setPriority(Download download, Download.Priority priority) {
+        download.setPriority(priority);
+        scheduler.reorder();
+    }
+
+    /**
+     * Moves download to the front of the queue, so it's served before other downloads of the same priority.
+     */
+    public void moveToFront(Download download) {
+        if (downloads.remove(download)) {
+            downloads.add(0, download);
+        }
+        scheduler.moveToFront(download);
+    }
+
+    /**
+     * @return statistics of connection pool or {@code null} if connections aren't managed by this instance.
+     */
+    public PoolStats getConnectionPoolStats() {
+        AsyncEngine asyncEngine = this.asyncEngine;
+        if (asyncEngine != null) {
+            return asyncEngine.getConnectionPoolStats();
+        }
+        return connectionManager != null ? connectionManager.getTotalStats() : null;
+    }
+
+    /**
+     * @return totals of all downloads, metrics of a single download are available from {@link Download#getMetrics()}.
+     */
+    public DownloaderMetrics getMetrics() {
+        return metrics;
+    }
+
+    int getActiveDownloads() {
+        return scheduler.getActiveDownloads();
+    }
+
+    int getQueuedSegments() {
+        return scheduler.getQueuedSegments();
+    }
+
+    /**
+     * Exports metrics of this instance and of its downloads in progress to the platform MBean server,
+     * see {@link DownloaderMXBean} and {@link DownloadMXBean}. MBeans of downloads are registered when they're
+     * prepared and unregistered when they're finished.
+     * @param name distinguishes MBeans of this instance from MBeans of other ones.
+     */
+    public void registerMBeans(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new StandardMBean(metrics, DownloaderMXBean.class, true), getObjectName(name));
+        mbeansName = name;
+        for (Download download : downloads) {
+            if (download.getState() == Download.State.Ready) {
+                registerMBean(download);
+            }
+        }
+    }
+
+    public void unregisterMBeans() {
+        String name = mbeansName;
+        if (name == null) {
+            return;
+        }
+        mbeansName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName(name));
+        } catch (JMException e) {
+            LOGGER.warn("Failed to unregister MBean " + name, e);
+        }
+        for (Download download : downloads) {
+            unregisterMBean(download, name);
+        }
+    }
+
+    private static ObjectName getObjectName(String name) throws JMException {
+        return new ObjectName(MBEAN_DOMAIN + ":type=Downloader,name=" + ObjectName.quote(name));
+    }
+
+    private static ObjectName getObjectName(String name, Download download) throws JMException {
+        return new ObjectName(MBEAN_DOMAIN + ":type=Download,downloader=" + ObjectName.quote(name)
+                + ",url=" + ObjectName.quote(download.getUrl()));
+    }
+
+    private void registerMBean(Download download) {
+        String name = mbeansName;
+        if (name == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = getObjectName(name, download);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(new StandardMBean(download.getMetrics(), DownloadMXBean.class, true), objectName);
+            }
+        } catch (JMException e) {
+            LOGGER.warn(download.getUrl() + ": failed to register MBean", e);
+        }
+    }
+
+    private void unregisterMBean(Download download, String name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = getObjectName(name, download);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            LOGGER.warn(download.getUrl() + ": failed to unregister MBean", e);
+        }
+    }
+
+    private void setDownloadState(Download download, Download.State state) {
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info(download.getUrl() + " -> " + state);
+        }
+        download.setState(state);
+        if (state == Download.State.Ready) {
+            registerMBean(download);
+        } else if (state == Download.State.Finished || state == Download.State.Error) {
+            unregisterMBean(download, mbeansName);
+        }
+        handler.downloadStateChanged(download);
+    }
+
+    void addProgress(Download download, long offset, int length) {
+        download.addProgress(offset, length);
+        recordProgress(download, length);
+        progressDispatcher.progressChanged(download);
+    }
+
+    void addProgress(Download download, MultipartProgress.Cursor cursor, int length) {
+        cursor.advance(length);
+        recordProgress(download, length);
+        progressDispatcher.progressChanged(download);
+    }
+
+    /**
+     * Records time to the first byte of a response to the request sent at {@code requestStart}.
+     */
+    void responseReceived(Download download, long requestStart) {
+        download.getMetrics().responseReceived(System.nanoTime() - requestStart);
+    }
+
+    private void recordProgress(Download download, int length) {
+        download.getMetrics().bytesReceived(length);
+        ProgressJournal journal = download.getJournal();
+        if (journal != null) {
+            try {
+                journal.record(length);
+            } catch (IOException e) {
+                LOGGER.warn(download.getUrl() + ": journal is disabled", e);
+                download.setJournal(null);
+            }
+        }
+    }
+
+    /**
+     * Sets size of buffers used to transfer data from connections to files, 40 KB by default.
+     * Every worker thread keeps its own buffer.
+     */
+    public void setBufferSize(int bufferSize) {
+        buffers.setBufferSize(bufferSize);
+    }
 
-    ForkJoinPool pool;
+    /**
+     * Fixes size of segments files are downloaded in. By default segments are sized from measured throughput
+     * of the host, so each of them takes about the same time.
+     * @param segmentSize size in bytes or 0 to size segments from throughput.
+     */
+    public void setSegmentSize(long segmentSize) {
+        planner.setFixedSegmentSize(segmentSize);
+    }
+
+    /**
+     * Limits total bandwidth used by all downloads, may be changed while downloads are running.
+     * Active segments share the bandwidth fairly.
+     * @param bytesPerSecond limit or 0 to remove it.
+     * @see Download#setBandwidthLimit(long)
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        limiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * @return total bandwidth limit in bytes per second, 0 if unlimited.
+     */
+    public long getBandwidthLimit() {
+        return limiter.getRate();
+    }
+
+    /**
+     * Limits bandwidth used by downloads from specified host, may be changed while downloads are running.
+     * @param bytesPerSecond limit or 0 to remove it.
+     */
+    public void setHostBandwidthLimit(String host, long bytesPerSecond) {
+        if (bytesPerSecond == BandwidthLimiter.UNLIMITED) {
+            hostLimiters.remove(host);
+        } else {
+            hostLimiters.computeIfAbsent(host, h -> new BandwidthLimiter(bytesPerSecond)).setRate(bytesPerSecond);
+        }
+    }
+
+    /**
+     * Waits until {@code length} bytes of the download may be transferred according to bandwidth limits.
+     */
+    private void throttle(Download download, int length) throws RequestAbortedException {
+        long wait = reserve(download, length);
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RequestAbortedException("Interrupted while throttled");
+            }
+        }
+    }
+
+    /**
+     * Reserves {@code length} bytes of bandwidth for the download.
+     * @return nanoseconds to wait before transferring them.
+     */
+    long reserve(Download download, int length) {
+        long wait = Math.max(limiter.reserve(length), download.getLimiter().reserve(length));
+        if (!hostLimiters.isEmpty()) {
+            BandwidthLimiter hostLimiter = hostLimiters.get(download.getHost());
+            if (hostLimiter != null) {
+                wait = Math.max(wait, hostLimiter.reserve(length));
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * Defines whether file content should be flushed to the storage device when download is finished.
+     * Disabled by default.
+     */
+    public void setForceOnFinish(boolean forceOnFinish) {
+        this.forceOnFinish = forceOnFinish;
+    }
+
+    /**
+     * Selects how downloaded bytes are written to files. Applies to downloads prepared after the call.
+     * {@link WriteMode#Mapped} is only used for files with known size, others are always written as a stream.
+     */
+    public void setWriteMode(WriteMode writeMode) {
+        this.writeMode = writeMode;
+    }
+
+    /**
+     * Selects how disk space is reserved for files with known size, {@link Preallocation#Sparse} by default.
+     * Applies to downloads prepared after the call.
+     */
+    public void setPreallocation(Preallocation preallocation) {
+        this.preallocation = preallocation;
+    }
+
+    public Preallocation getPreallocation() {
+        return preallocation;
+    }
+
+    /**
+     * Defines whether progress of downloads with known size is persisted to journal files next to downloaded files,
+     * so they can be resumed after restart. Enabled by default.
+     * @see #restoreDownloads()
+     */
+    public void setJournalEnabled(boolean journalEnabled) {
+        this.journalEnabled = journalEnabled;
+    }
+
+    /**
+     * Defines whether file size is determined with a separate {@code HEAD} request, enabled by default.
+     * When disabled, the first request is {@code GET} of the whole file as a range: size and range support
+     * are determined from its response and its body is used as the first part of the file.
+     * This saves a round-trip per file and works with servers which don't answer {@code HEAD} properly.
+     * <p>
+     * Applies to {@link ExecutionMode#Pool} and {@link ExecutionMode#VirtualThreads} only,
+     * {@link ExecutionMode#Async} always prepares files with {@code HEAD}.
+     */
+    public void setHeadRequestEnabled(boolean headRequestEnabled) {
+        this.headRequestEnabled = headRequestEnabled;
+    }
+
+    /**
+     * Defines whether downloaded bytes are verified against digests announced by server, disabled by default.
+     * Parts with {@code Content-Digest} or {@code Content-MD5} are verified as they're downloaded and downloaded
+     * again on mismatch. Files with {@code Repr-Digest}, {@code Digest} or {@code Content-MD5} of the whole file
+     * are hashed while they're downloaded and fail on mismatch.
+     * @see #setExpectedSha256(Download, String)
+     */
+    public void setVerificationEnabled(boolean verificationEnabled) {
+        this.verificationEnabled = verificationEnabled;
+    }
+
+    boolean isVerificationEnabled() {
+        return verificationEnabled;
+    }
+
+    /**
+     * Sets SHA-256 digest the downloaded file is verified against, even if verification is disabled.
+     * Applies when the download is prepared next time.
+     * @param sha256 digest in hexadecimal or {@code null} to remove it.
+     * @throws IllegalArgumentException if the digest is malformed.
+     */
+    public void setExpectedSha256(Download download, String sha256) {
+        download.setChecksum(sha256 != null ? Checksum.sha256(sha256) : null);
+    }
+
+    /**
+     * Limits number of progress events delivered to {@link DownloaderEventHandler} for each download, 10 by default.
+     */
+    public void setProgressEventsRate(int eventsPerSecond) {
+        progressDispatcher.setEventsPerSecond(eventsPerSecond);
+    }
+
+    /**
+     * Sets {@link DownloaderEventHandler} to be used then various download related events occur.
+     */
+    public void setHandler(DownloaderEventHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Adds new download. If this instance is already running then newly created download
+     * will be added to processed queue right away.
+     *
+     * @param url file to download.
+     * @return
+     * @throws DownloadCreationException when uri can't be properly parsed.
+     */
+    public Download createDownload(String url) throws DownloadCreationException {
+        // validation
+        try {
+            URI uri = new URI(url);
+        } catch (URISyntaxException e) {
+            throw new DownloadCreationException(e);
+        }
+
+        Download download = new Download(url, metrics);
+
+        downloads.add(download);
+
+        if (running) {
+            scheduler.submit(download);
+        }
+
+        return download;
+    }
+
+    public List<Download> getDownloads() {
+        return downloads;
+    }
+
+    /**
+     * Restores unfinished downloads from journals found in download directory. Restored downloads are
+     * {@link Download.State#Ready}, so only missing parts are downloaded when they are started.
+     *
+     * @return restored downloads.
+     */
+    public List<Download> restoreDownloads() {
+        List<Download> restored = new ArrayList<>();
+        File[] journals = downloadDirectory.listFiles((dir, name) -> name.endsWith(ProgressJournal.EXTENSION));
+        if (journals == null) {
+            return restored;
+        }
+
+        for (File journal : journals) {
+            String filename = ProgressJournal.targetFilename(journal);
+            if (downloads.stream().anyMatch(d -> filename.equals(d.getFilename()))) {
+                continue;
+            }
+            try {
+                ProgressJournal.Entry entry = ProgressJournal.read(journal);
+                if (entry == null || !holdsParts(new File(filename), entry)) {
+                    LOGGER.warn("Discarding stale journal " + journal);
+                    Files.delete(journal.toPath());
+                    continue;
+                }
+
+                Download download = new Download(entry.getUrl(), metrics);
+                download.setSize(entry.getSize());
+                download.setFilename(filename);
+                download.setETag(entry.getETag());
+                download.setLastModified(entry.getLastModified());
+                restoreProgress(download, entry);
+                download.setStorage(createStorage(filename, entry.getSize()));
+                // the download is listed only when it's complete, so a failure above doesn't leave a download without storage
+                downloads.add(download);
+                restored.add(download);
+                try {
+                    checkFreeSpace(download);
+                } catch (IOException e) {
+                    // the journal is kept, so the download is resumed once it's started again
+                    fail(download, e);
+                    continue;
+                }
+                startAllocation(download);
+                download.setState(Download.State.Ready);
+                registerMBean(download);
+
+                if (running) {
+                    scheduler.submit(download);
+                }
+            } catch (IOException e) {
+                LOGGER.warn(journal.getPath(), e);
+            }
+        }
+        return restored;
+    }
+
+    public void restartAll() {
+        if (!running) {
+            return;
+        }
+        downloads.stream().filter(d -> d.getState() == Download.State.Ready || d.getState() == Download.State.New).forEach(scheduler::submit);
+        startWorkers();
+    }
+
+    public void startAll() {
+        if (running) {
+            downloads.stream().filter(d -> d.getState() == Download.State.Error).forEach(scheduler::submit);
+        } else {
+            downloads.stream().filter(d -> d.getState() != Download.State.Finished).forEach(scheduler::submit);
+        }
+        running = true;
+        startWorkers();
+    }
+
+    private void startWorkers() {
+        int generation;
+        if (asyncEngine != null) {
+            if (!dispatching && (generation = scheduler.addWorker()) != -1) {
+                int dispatcherGeneration = generation;
+                AsyncEngine engine = asyncEngine;
+                dispatching = true;
+                pool.execute(() -> engine.dispatch(dispatcherGeneration));
+            }
+            return;
+        }
+        while ((generation = scheduler.addWorker()) != -1) {
+            int workerGeneration = generation;
+            pool.execute(() -> work(workerGeneration));
+        }
+    }
+
+    /**
+     * Stops workers and replaces the pool.
+     * @param interrupt whether segments in progress should be interrupted, otherwise workers stop
+     *                  when there's nothing to do.
+     */
+    private void stopWorkers(boolean interrupt) {
+        scheduler.resetWorkers();
+        dispatching = false;
+        if (interrupt) {
+            if (asyncEngine != null) {
+                asyncEngine.cancel();
+            }
+            pool.shutdownNow();
+        } else {
+            pool.shutdown();
+        }
+        pool = createPool();
+    }
+
+    private ExecutorService createPool() {
+        switch (executionMode) {
+            case VirtualThreads:
+                return VirtualThreadSupport.newExecutor();
+            case Async:
+                // runs the dispatcher only
+                return new ForkJoinPool(1);
+            default:
+                // number of threads follows number of workers, see DownloadScheduler#addWorker
+                return Executors.newCachedThreadPool(daemonThreads("downloader-worker"));
+        }
+    }
+
+    static ThreadFactory daemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + '-' + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private void work(int generation) {
+        DownloadScheduler.Segment segment;
+        while ((segment = scheduler.take(generation)) != null) {
+            execute(segment);
+            if (segment.isRetired()) {
+                // pool was shrunk, the worker is already forgotten by the scheduler
+                return;
+            }
+        }
+    }
+
+    private void execute(DownloadScheduler.Segment segment) {
+        Download download = segment.getDownload();
+        long remainingFrom = 0;
+        long remainingTo = 0;
+        boolean failed = false;
+        boolean transfer = segment.getType() != DownloadScheduler.Segment.Type.Prepare;
+        long started = System.nanoTime();
+        if (transfer) {
+            download.getMetrics().segmentStarted();
+        }
+        try {
+            switch (segment.getType()) {
+                case Prepare:
+                    prepare(segment);
+                    failed = download.getState() == Download.State.Error;
+                    break;
+                case Sequential:
+                    if (!download(download, segment.getResponse())) {
+                        // sequential download starts over
+                        remainingTo = Long.MAX_VALUE;
+                    }
+                    break;
+                case Part:
+                    MultipartProgress.Cursor cursor = download.openCursor(segment.getFrom(), segment.getTo());
+                    try {
+                        downloadPart(segment, cursor);
+                    } finally {
+                        remainingFrom = cursor.getPosition();
+                        remainingTo = cursor.getEnd();
+                        download.closeCursor(cursor);
+                    }
+                    break;
+            }
+        } catch (RetryLaterException e) {
+            retryLater(segment, e);
+        } catch (ContentChangedException e) {
+            failed = !restart(segment, e);
+        } catch (RangesIgnoredException e) {
+            rangesIgnored(segment, e);
+        } catch (DownloadFailedException | RuntimeException e) {
+            fail(download, e);
+            failed = true;
+        } finally {
+            if (transfer) {
+                download.getMetrics().segmentFinished(System.nanoTime() - started);
+            }
+            complete(segment, remainingFrom, remainingTo, failed);
+        }
+    }
+
+    /**
+     * Backs off host of the segment as requested by server.
+     */
+    void retryLater(DownloadScheduler.Segment segment, RetryLaterException e) {
+        Download download = segment.getDownload();
+        download.getMetrics().retried();
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info(download.getUrl() + ": " + e.getMessage() + ", retrying " + download.getHost()
+                    + " in " + e.getDelay() + " ms.");
+        }
+        scheduler.backoff(segment, e.getDelay(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Downloads the rest of the file sequentially, parts in progress stop at their current positions.
+     */
+    void rangesIgnored(DownloadScheduler.Segment segment, RangesIgnoredException e) {
+        Download download = segment.getDownload();
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info(download.getUrl() + ": " + e.getMessage() + ", ranges aren't supported, downloading sequentially.");
+        }
+        download.setRangesSupported(false);
+        // allocator would zero ranges written by the sequential download before their progress is added
+        stopAllocation(download);
+        scheduler.sequential(segment);
+        download.stopCursors();
+    }
+
+    /**
+     * Downloads the file again from scratch, parts in progress stop at their current positions.
+     * @return {@code false} if the download was restarted too many times and failed.
+     */
+    boolean restart(DownloadScheduler.Segment segment, ContentChangedException e) {
+        Download download = segment.getDownload();
+        download.getMetrics().retried();
+        if (scheduler.restart(segment) > MAX_RETRY_COUNT) {
+            fail(download, e);
+            return false;
+        }
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info(download.getUrl() + ": " + e.getMessage() + ", file was changed, downloading it again.");
+        }
+        download.stopCursors();
+        return true;
+    }
+
+    /**
+     * Discards storage, digest and journal of a restarted download before it's prepared again.
+     */
+    void discard(Download download) {
+        stopAllocation(download);
+        try {
+            StreamingDigest digest = download.getDigest();
+            if (digest != null) {
+                digest.close();
+                download.setDigest(null);
+            }
+            download.closeStorage(false);
+            download.setStorage(null);
+            ProgressJournal journal = download.getJournal();
+            if (journal != null) {
+                journal.delete();
+                download.setJournal(null);
+            }
+        } catch (IOException e) {
+            LOGGER.warn(download.getUrl(), e);
+        }
+    }
+
+    void fail(Download download, Exception e) {
+        LOGGER.warn(download.getUrl(), e);
+        setDownloadState(download, Download.State.Error);
+    }
+
+    /**
+     * Marks segment as done, see {@link DownloadScheduler#release(DownloadScheduler.Segment, long, long, boolean)}.
+     */
+    void complete(DownloadScheduler.Segment segment, long remainingFrom, long remainingTo, boolean failed) {
+        Download done = scheduler.release(segment, remainingFrom, remainingTo, failed);
+        if (done != null) {
+            try {
+                finish(done);
+            } finally {
+                scheduler.finished(done);
+            }
+        }
+    }
+
+    /**
+     * Closes storage and journal of a download which has no more segments to download.
+     */
+    private void finish(Download download) {
+        boolean complete = Boolean.TRUE.equals(download.isComplete());
+        boolean verified = !complete || verify(download);
+        stopAllocation(download);
+        try {
+            StreamingDigest digest = download.getDigest();
+            if (digest != null) {
+                digest.close();
+            }
+            download.closeStorage(complete && forceOnFinish);
+            if (complete && forceOnFinish) {
+                download.getMetrics().synced();
+            }
+            ProgressJournal journal = download.getJournal();
+            if (journal != null) {
+                if (complete) {
+                    journal.delete();
+                } else {
+                    journal.flush();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn(download.getUrl(), e);
+        }
+        Download.State state = complete ? (verified ? Download.State.Finished : Download.State.Error) : download.getState();
+        progressDispatcher.flush(download, state == Download.State.Finished || state == Download.State.Error);
+        if (complete) {
+            setDownloadState(download, state);
+        }
+    }
+
+    /**
+     * @return whether digest of the downloaded file matches expected one, {@code true} if it isn't verified.
+     */
+    private boolean verify(Download download) {
+        StreamingDigest digest = download.getDigest();
+        if (digest == null) {
+            return true;
+        }
+        try {
+            if (digest.verify(download)) {
+                return true;
+            }
+            LOGGER.warn(download.getUrl() + ": " + digest.getAlgorithm() + " digest doesn't match.");
+        } catch (IOException e) {
+            LOGGER.warn(download.getUrl(), e);
+        }
+        return false;
+    }
+
+    /**
+     * Moves the cursor back, so the range after the position is downloaded again. Journal is rewritten,
+     * otherwise the range would be restored as downloaded after restart.
+     */
+    void rewind(Download download, MultipartProgress.Cursor cursor, long position) {
+        download.rewindCursor(cursor, position);
+        StreamingDigest digest = download.getDigest();
+        if (digest != null) {
+            digest.rewind(position);
+        }
+        ProgressJournal journal = download.getJournal();
+        if (journal != null) {
+            try {
+                journal.compact();
+            } catch (IOException e) {
+                LOGGER.warn(download.getUrl() + ": journal is disabled", e);
+                download.setJournal(null);
+                discardJournal(download, journal);
+            }
+        }
+        progressDispatcher.progressChanged(download);
+    }
+
+    /**
+     * Deletes journal which may hold ranges the download no longer has.
+     */
+    private static void discardJournal(Download download, ProgressJournal journal) {
+        try {
+            journal.delete();
+        } catch (IOException e) {
+            LOGGER.warn(download.getUrl() + ": failed to delete journal", e);
+        }
+    }
+
+    /**
+     * Forgets hashed content of a file downloaded sequentially, it's written from the beginning again.
+     */
+    static void startOver(Download download) {
+        StreamingDigest digest = download.getDigest();
+        if (digest != null) {
+            digest.rewind(0);
+        }
+    }
 
     /**
-     * Initializes instance.
-     * @param downloadDirectory Directory to save files in.
+     * Accounts written bytes in digest of the file, should be called after progress of the write is added.
+     * @param data written bytes.
      */
-    public Downloader(File downloadDirectory) {
-        this(downloadDirectory, HttpClients.createDefault());
+    void written(Download download, long offset, ByteBuffer data) {
+        StreamingDigest digest = download.getDigest();
+        if (digest != null) {
+            digest.update(download, offset, data);
+        }
     }
 
-    Downloader(File downloadDirectory, HttpClient httpClient) {
-        this.downloadDirectory = downloadDirectory;
-        this.client = httpClient;
-        setThreadsNumber(Runtime.getRuntime().availableProcessors());
+    private void prepare(DownloadScheduler.Segment segment) throws RetryLaterException {
+        Download download = segment.getDownload();
+        if (segment.isRestart()) {
+            discard(download);
+        }
+        HttpResponse response = null;
+        if (headRequestEnabled) {
+            prepare(download);
+        } else {
+            response = probe(download);
+        }
+        prepared(segment, response);
     }
 
     /**
-     * Resizes internal workers pool.
-     * @param threadsNumber
+     * Schedules missing parts of the download after {@link DownloadScheduler.Segment.Type#Prepare} segment is done.
+     * @param response response which body is the beginning of the file or {@code null}.
      */
-    public void setThreadsNumber(int threadsNumber) {
-        if (threadsNumber == this.threadsNumber) {
-            return;
-        }
-        if (pool != null) {
-            pool.shutdownNow();
+    void prepared(DownloadScheduler.Segment segment, HttpResponse response) {
+        Download download = segment.getDownload();
+        if (download.getState() == Download.State.Ready) {
+            // files with unknown size are downloaded in parts too if ranges are supported, until the end is found
+            scheduler.prepared(segment, !download.isRangesSupported(), response);
+        } else {
+            release(response);
         }
-        pool = new ForkJoinPool(threadsNumber);
-        restartAll();
+    }
 
-        this.threadsNumber = threadsNumber;
+    /**
+     * Requests remaining range of the cursor. The range is conditional on the file being unchanged since it was
+     * prepared, otherwise server sends the whole file, see {@link #checkPartial(Download, HttpResponse)}.
+     */
+    static void addRange(HttpRequest request, Download download, MultipartProgress.Cursor cursor) {
+        // last byte position of a range is inclusive
+        addRange(request, download, cursor.getPosition() + "-" + (cursor.getEnd() - 1));
     }
 
-    private void setDownloadState(Download download, Download.State state) {
-        if (LOGGER.isInfoEnabled()) {
-            LOGGER.info(download.getUrl() + " -> " + state);
+    /**
+     * Requests the rest of the file from the offset, see {@link #addRange(HttpRequest, Download, MultipartProgress.Cursor)}.
+     */
+    static void addRange(HttpRequest request, Download download, long offset) {
+        addRange(request, download, offset + "-");
+    }
+
+    private static void addRange(HttpRequest request, Download download, String range) {
+        request.addHeader("Range", "bytes=" + range);
+        String validator = download.getETag();
+        if (validator == null || validator.startsWith("W/")) {
+            // weak entity tags can't be used in If-Range
+            validator = download.getLastModified();
+        }
+        if (validator != null) {
+            request.addHeader("If-Range", validator);
         }
-        download.setState(state);
-        handler.downloadStateChanged(download);
     }
 
-    private void addProgress(Download download, long offset, int length) {
-        download.addProgress(offset, length);
-        handler.progressChanged(download);
+    /**
+     * Checks that server didn't send the whole file in response to a range request.
+     * @throws ContentChangedException if the file was changed since it was prepared.
+     * @throws RangesIgnoredException if the file is the same, so server ignores ranges.
+     */
+    static void checkPartial(Download download, HttpResponse response)
+            throws ContentChangedException, RangesIgnoredException {
+        if (response.getStatusLine().getStatusCode() != 200) {
+            return;
+        }
+        if (isChanged(download, response)) {
+            throw new ContentChangedException(response.getStatusLine().toString());
+        }
+        throw new RangesIgnoredException(response.getStatusLine().toString());
     }
 
     /**
-     * Sets {@link DownloaderEventHandler} to be used then various download related events occur.
+     * @return whether validators of the response differ from ones the download was prepared with. Without
+     * validators in the response the file is considered changed, unless there were none to send in {@code If-Range}.
      */
-    public void setHandler(DownloaderEventHandler handler) {
-        this.handler = handler;
+    static boolean isChanged(Download download, HttpResponse response) {
+        String etag = download.getETag();
+        String lastModified = download.getLastModified();
+        if (etag == null && lastModified == null) {
+            // range wasn't conditional
+            return false;
+        }
+        boolean compared = false;
+        Header etagHeader = response.getFirstHeader("ETag");
+        if (etag != null && etagHeader != null) {
+            if (!etag.equals(etagHeader.getValue())) {
+                return true;
+            }
+            compared = true;
+        }
+        Header lastModifiedHeader = response.getFirstHeader("Last-Modified");
+        if (lastModified != null && lastModifiedHeader != null) {
+            if (!lastModified.equals(lastModifiedHeader.getValue())) {
+                return true;
+            }
+            compared = true;
+        }
+        return !compared;
     }
 
     /**
-     * Adds new download. If this instance is already running then newly created download
-     * will be added to processed queue right away.
+     * Finds the end of a file with unknown size from response to a range request of the cursor. It's the total size
+     * from {@code Content-Range}, the end of a range shorter than requested one or the start of a range which isn't
+     * satisfiable. Range of a file with known size isn't satisfiable only if the file was truncated on server.
+     * <p>
+     * Content of any other response, e.g. an error page, or of a range which doesn't start at the cursor would be
+     * written at a wrong place, so such responses fail with {@link IOException} and the range is requested again.
+     * {@code 200} responses should be handled by {@link #checkPartial(Download, HttpResponse)} first.
      *
-     * @param url file to download.
-     * @return
-     * @throws DownloadCreationException when uri can't be properly parsed.
+     * @return whether the response has content of the range.
      */
-    public Download createDownload(String url) throws DownloadCreationException {
-        // validation
-        try {
-            URI uri = new URI(url);
-        } catch (URISyntaxException e) {
-            throw new DownloadCreationException(e);
+    boolean checkRange(DownloadScheduler.Segment segment, MultipartProgress.Cursor cursor, HttpResponse response)
+            throws ContentChangedException, IOException {
+        Download download = segment.getDownload();
+        int statusCode = response.getStatusLine().getStatusCode();
+        Header contentRangeHeader = response.getFirstHeader("Content-Range");
+        if (statusCode == 416 && !download.isOpenEnded()) {
+            throw new ContentChangedException(response.getStatusLine().toString());
+        }
+        if (statusCode != 206 && statusCode != 416) {
+            throw new IOException("Unexpected response to range request: " + response.getStatusLine());
+        }
+        if (statusCode == 206) {
+            long start;
+            try {
+                start = contentRangeHeader != null ? parseContentRangeStart(contentRangeHeader.getValue()) : Download.UNKNOWN_SIZE;
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed Content-Range: " + contentRangeHeader.getValue(), e);
+            }
+            if (start != cursor.getPosition()) {
+                throw new IOException("Range starting at " + cursor.getPosition() + " is requested, but "
+                        + (contentRangeHeader != null ? contentRangeHeader.getValue() : "no Content-Range") + " is received");
+            }
+        }
+        if (!download.isOpenEnded()) {
+            return true;
         }
 
-        Download download = new Download(url);
+        long size = Download.UNKNOWN_SIZE;
+        try {
+            if (contentRangeHeader != null) {
+                size = parseContentRangeSize(contentRangeHeader.getValue());
+                if (size == Download.UNKNOWN_SIZE && statusCode == 206) {
+                    long end = parseContentRangeEnd(contentRangeHeader.getValue());
+                    size = end < cursor.getEnd() ? end : Download.UNKNOWN_SIZE;
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed Content-Range: " + contentRangeHeader.getValue(), e);
+        }
+        if (statusCode == 416) {
+            // nothing is left after the position
+            size = size == Download.UNKNOWN_SIZE ? cursor.getPosition() : Math.min(size, cursor.getPosition());
+        }
+        if (size != Download.UNKNOWN_SIZE) {
+            limitSize(segment, size);
+        }
+        return statusCode == 206;
+    }
 
-        downloads.add(download);
+    /**
+     * Sets size of a file which wasn't known when its end is found, ranges after the end aren't downloaded.
+     */
+    private void limitSize(DownloadScheduler.Segment segment, long size) {
+        Download download = segment.getDownload();
+        if (download.limitSize(size)) {
+            scheduler.truncate(segment, size);
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info(download.getUrl() + ": size is " + download.getSize() + " bytes.");
+            }
+            progressDispatcher.progressChanged(download);
+        }
+    }
 
-        if (running) {
-            pool.execute(new DownloadJob(download));
+    /**
+     * Throws {@link RetryLaterException} if server asks to repeat the request later.
+     */
+    static void checkRetryLater(HttpResponse response) throws RetryLaterException {
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode != 429 && statusCode != 503) {
+            return;
         }
+        throw new RetryLaterException(response.getStatusLine().toString(), getRetryAfter(response));
+    }
 
-        return download;
+    /**
+     * @return delay in milliseconds from {@code Retry-After} header which is either a number of seconds or a date.
+     */
+    static long getRetryAfter(HttpResponse response) {
+        Header retryAfter = response.getFirstHeader("Retry-After");
+        if (retryAfter != null) {
+            String value = retryAfter.getValue().trim();
+            try {
+                return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+            } catch (NumberFormatException e) {
+                Date date = DateUtils.parseDate(value);
+                if (date != null) {
+                    return Math.max(0, date.getTime() - System.currentTimeMillis());
+                }
+            }
+        }
+        return TimeUnit.SECONDS.toMillis(DEFAULT_RETRY_AFTER);
     }
 
-    public List<Download> getDownloads() {
-        return downloads;
+    /**
+     * Determines file name and size with a HEAD request.
+     */
+    private void prepare(Download download) throws RetryLaterException {
+        HttpHead request = new HttpHead(download.getUrl());
+        HttpResponse response = null;
+        try {
+            long requestStart = System.nanoTime();
+            response = client.execute(request);
+            responseReceived(download, requestStart);
+            prepare(download, request, response);
+        } catch (IOException e) {
+            LOGGER.warn(download.getUrl(), e);
+            setDownloadState(download, Download.State.Error);
+        } finally {
+            release(response);
+        }
     }
 
-    public void restartAll() {
-        if (!running) {
+    /**
+     * Determines file name and size from response to HEAD request.
+     */
+    void prepare(Download download, HttpHead request, HttpResponse response) throws IOException, RetryLaterException {
+        checkRetryLater(response);
+        if (response.getStatusLine().getStatusCode() != 200) {
+            setDownloadState(download, Download.State.Error);
             return;
         }
-        downloads.stream().filter(d -> d.getState() == Download.State.Ready || d.getState() == Download.State.New).forEach(d -> pool.execute(new DownloadJob(d)));
-    }
 
-    public void startAll() {
-        if (running) {
-            downloads.stream().filter(d -> d.getState() == Download.State.Error).forEach(d -> pool.execute(new DownloadJob(d)));
-        } else {
-            downloads.stream().filter(d -> d.getState() != Download.State.Finished).forEach(d -> pool.execute(new DownloadJob(d)));
+        Header contentLengthHeader = response.getFirstHeader("Content-Length");
+        long contentLength = contentLengthHeader != null ? Long.parseLong(contentLengthHeader.getValue()) : Download.UNKNOWN_SIZE;
+        Header acceptRangesHeader = response.getFirstHeader("Accept-Ranges");
+        boolean rangesSupported = acceptRangesHeader == null || !"none".equalsIgnoreCase(acceptRangesHeader.getValue());
+        if (contentLength == Download.UNKNOWN_SIZE) {
+            // parts of a file with unknown size are requested speculatively, server has to promise it'd serve them
+            rangesSupported = acceptRangesHeader != null && "bytes".equalsIgnoreCase(acceptRangesHeader.getValue());
         }
-        running = true;
+
+        setup(download, request, response, contentLength, rangesSupported);
     }
 
-    private void prepare(Download download) {
-        HttpHead request = new HttpHead(download.getUrl());
+    /**
+     * Determines file name and size from response to {@code GET} request of the whole file as a range.
+     *
+     * @return response which body should be used as the beginning of the file or {@code null} on error.
+     */
+    private HttpResponse probe(Download download) throws RetryLaterException {
+        HttpGet request = new HttpGet(download.getUrl());
+        request.addHeader("Range", "bytes=0-");
+        HttpResponse response = null;
         try {
-            HttpResponse response = client.execute(request);
+            long requestStart = System.nanoTime();
+            response = client.execute(request, new BasicHttpContext());
+            responseReceived(download, requestStart);
 
-            if (response.getStatusLine().getStatusCode() != 200) {
+            checkRetryLater(response);
+            long size;
+            boolean rangesSupported;
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == 206) {
+                Header contentRangeHeader = response.getFirstHeader("Content-Range");
+                size = contentRangeHeader != null ? parseContentRangeSize(contentRangeHeader.getValue()) : Download.UNKNOWN_SIZE;
+                rangesSupported = true;
+            } else if (statusCode == 200) {
+                // range is ignored, so the file can only be downloaded with this response
+                Header contentLengthHeader = response.getFirstHeader("Content-Length");
+                size = contentLengthHeader != null ? Long.parseLong(contentLengthHeader.getValue()) : Download.UNKNOWN_SIZE;
+                rangesSupported = false;
+            } else {
                 setDownloadState(download, Download.State.Error);
-                return;
+                return null;
             }
 
-            String filename = evaluateFilename(request, response);
+            setup(download, request, response, size, rangesSupported);
 
-            Header contentLengthHeader = response.getFirstHeader("Content-Length");
-            int contentLength = contentLengthHeader != null ? Integer.parseInt(contentLengthHeader.getValue()) : Download.UNKNOWN_SIZE;
+            HttpResponse result = response;
+            response = null;
+            return result;
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.warn(download.getUrl(), e);
+            setDownloadState(download, Download.State.Error);
+            return null;
+        } finally {
+            release(response);
+        }
+    }
 
-            synchronized (download) {
-                String absolute = new File(downloadDirectory, filename).getAbsolutePath();
-                download.setSize(contentLength);
-                download.setFilename(absolute);
+    /**
+     * Parses total size from {@code Content-Range} header value like {@code bytes 0-1023/146515}.
+     * @return total size or {@link Download#UNKNOWN_SIZE} if it isn't specified.
+     */
+    static long parseContentRangeSize(String contentRange) {
+        int slash = contentRange.lastIndexOf('/');
+        if (slash == -1 || slash == contentRange.length() - 1 || contentRange.charAt(slash + 1) == '*') {
+            return Download.UNKNOWN_SIZE;
+        }
+        return Long.parseLong(contentRange.substring(slash + 1).trim());
+    }
 
-                if (contentLength > 0) {
-                    preallocateFile(absolute, contentLength);
-                }
+    /**
+     * Parses start of the range from {@code Content-Range} header value like {@code bytes 0-1023/*}.
+     * @return position of the first byte of the range or {@link Download#UNKNOWN_SIZE} if there is no range.
+     */
+    static long parseContentRangeStart(String contentRange) {
+        int space = contentRange.indexOf(' ');
+        int dash = contentRange.indexOf('-', space + 1);
+        if (space == -1 || dash == -1) {
+            return Download.UNKNOWN_SIZE;
+        }
+        return Long.parseLong(contentRange.substring(space + 1, dash).trim());
+    }
+
+    /**
+     * Parses end of the range from {@code Content-Range} header value like {@code bytes 0-1023/*}.
+     * @return position after the last byte of the range or {@link Download#UNKNOWN_SIZE} if there is no range.
+     */
+    static long parseContentRangeEnd(String contentRange) {
+        int dash = contentRange.indexOf('-');
+        int slash = contentRange.indexOf('/', dash + 1);
+        if (dash == -1 || slash == -1) {
+            return Download.UNKNOWN_SIZE;
+        }
+        // last byte position is inclusive
+        return Long.parseLong(contentRange.substring(dash + 1, slash).trim()) + 1;
+    }
+
+    private void setup(Download download, HttpUriRequest request, HttpResponse response, long size,
+                       boolean rangesSupported) throws IOException {
+        String filename = evaluateFilename(request, response);
+        Header etagHeader = response.getFirstHeader("ETag");
+        Header lastModifiedHeader = response.getFirstHeader("Last-Modified");
+
+        synchronized (download) {
+            String absolute = new File(downloadDirectory, filename).getAbsolutePath();
+            download.setSize(size);
+            download.setRangesSupported(rangesSupported);
+            download.setFilename(absolute);
+            download.setETag(etagHeader != null ? etagHeader.getValue() : null);
+            download.setLastModified(lastModifiedHeader != null ? lastModifiedHeader.getValue() : null);
 
-                setDownloadState(download, Download.State.Ready);
+            boolean resumed = size > 0 && rangesSupported && resumeFromJournal(download);
+            if (size > 0) {
+                checkFreeSpace(download);
             }
-        } catch (IOException e) {
-            LOGGER.warn(download.getUrl(), e);
-            setDownloadState(download, Download.State.Error);
+            if (size > 0 && !resumed) {
+                preallocateFile(absolute, size);
+                if (journalEnabled && rangesSupported) {
+                    download.setJournal(ProgressJournal.create(download));
+                }
+            } else if (size <= 0) {
+                // the file grows as it's downloaded
+                preallocateFile(absolute, 0);
+            }
+            if (size > 0 && rangesSupported) {
+                startAllocation(download);
+            }
+            download.setStorage(createStorage(absolute, size));
+            Checksum checksum = download.getChecksum();
+            if (checksum == null && verificationEnabled) {
+                checksum = Checksum.ofRepresentation(response);
+            }
+            download.setDigest(checksum != null ? new StreamingDigest(checksum) : null);
+
+            setDownloadState(download, Download.State.Ready);
         }
     }
 
-    private void download(Download download) throws DownloadFailedException {
+    /**
+     * Downloads file sequentially. Retries continue from the last written byte if server sends the rest of the file,
+     * the download starts over otherwise. End of the file with unknown size is where the response ends.
+     * @param response response to use for the first attempt or {@code null}.
+     * @return whether the file is downloaded, {@code false} if download was interrupted.
+     */
+    private boolean download(Download download, HttpResponse response) throws DownloadFailedException, RetryLaterException {
         int tryCount = 0;
+        // response passed by prepare starts at the beginning of the file
+        long offset = response != null ? 0 : download.getCompletedEnd(0);
         while (true) {
             try {
-                HttpGet request = new HttpGet(download.getUrl());
-                HttpResponse response = client.execute(request);
+                if (response == null) {
+                    HttpGet request = new HttpGet(download.getUrl());
+                    if (offset > 0) {
+                        addRange(request, download, offset);
+                    }
+                    long requestStart = System.nanoTime();
+                    response = client.execute(request);
+                    responseReceived(download, requestStart);
+                }
+                checkRetryLater(response);
+                if (offset > 0 && response.getStatusLine().getStatusCode() != 206) {
+                    // range is ignored or the file was changed
+                    offset = 0;
+                    startOver(download);
+                }
 
                 HttpEntity entity = response.getEntity();
                 // todo long contentLength = entity.getContentLength();
                 InputStream content = entity.getContent();
 
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int offset = 0;
+                ByteBuffer buffer = buffers.acquire();
                 int bc;
                 do {
-                    bc = content.read(buffer);
+                    bc = content.read(buffer.array());
                     if (bc > 0) {
-                        try (RandomAccessFile raf = new RandomAccessFile(download.getFilename(), "rw")) {
-                            raf.seek(offset);
-                            raf.write(buffer, 0, bc);
-                            addProgress(download, offset, bc);
-                            offset += bc;
-                        }
+                        throttle(download, bc);
+                        buffer.limit(bc);
+                        ByteBuffer data = buffer.duplicate();
+                        download.getStorage().write(offset, buffer);
+                        buffer.clear();
+                        addProgress(download, offset, bc);
+                        written(download, offset, data);
+                        offset += bc;
                     }
                 } while (bc != -1);
-            } catch (RequestAbortedException ignored) {
+                if (download.isOpenEnded()) {
+                    download.limitSize(offset);
+                }
+                return true;
+            } catch (RequestAbortedException | ClosedByInterruptException ignored) {
                 // probably pool resize
-                return;
+                return false;
             } catch (IOException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
                 if (tryCount++ < MAX_RETRY_COUNT) {
+                    download.getMetrics().retried();
                     continue;
                 }
                 throw new DownloadFailedException(e);
+            } finally {
+                release(response);
+                response = null;
             }
         }
     }
 
-    private void downloadPart(Download download, long from, Long to) throws DownloadFailedException {
-        int tryCount = 0;
-        while (true) {
+    /**
+     * Returns connection of the response to the pool. Fully read responses keep their connections alive,
+     * connections of partially read ones are closed.
+     */
+    static void release(HttpResponse response) {
+        if (response instanceof CloseableHttpResponse) {
             try {
-                HttpGet request = new HttpGet(download.getUrl());
-                request.addHeader("Range", "bytes=" + from + '-' + (to == null ? "" : to.toString()));
+                ((CloseableHttpResponse) response).close();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to release connection", e);
+            }
+        }
+    }
 
-                CloseableHttpResponse response = (CloseableHttpResponse) client.execute(request, new BasicHttpContext());
+    /**
+     * Downloads part of a file. Part may be shortened by another worker splitting it, see
+     * {@link MultipartProgress#splitLargest(long)}, then download stops at the new boundary.
+     * Download stops at current position of the cursor if it's interrupted.
+     *
+     * Response of the segment is read by the first attempt if it's passed, it's released by this method.
+     */
+    private void downloadPart(DownloadScheduler.Segment segment, MultipartProgress.Cursor cursor)
+            throws DownloadFailedException, RetryLaterException, ContentChangedException, RangesIgnoredException {
+        Download download = segment.getDownload();
+        HttpResponse response = segment.getResponse();
+        long from = cursor.getPosition();
+        long start = System.nanoTime();
+        int tryCount = 0;
+        try {
+            while (cursor.getPosition() < cursor.getEnd()) {
                 try {
-                    HttpEntity entity = response.getEntity();
-                    // todo long contentLength = entity.getContentLength();
-                    InputStream content = entity.getContent();
-
-                    byte[] buffer = new byte[BUFFER_SIZE];
-                    long offset = from;
-                    int bc;
-                    do {
-                        bc = content.read(buffer);
-                        if (bc > 0) {
-                            try (RandomAccessFile raf = new RandomAccessFile(download.getFilename(), "rw")) {
-                                raf.seek(offset);
-                                raf.write(buffer, 0, bc);
-                                addProgress(download, offset, bc);
-                                offset += bc;
+                    if (response == null) {
+                        // retries continue from the last written byte
+                        HttpGet request = new HttpGet(download.getUrl());
+                        addRange(request, download, cursor);
+                        long requestStart = System.nanoTime();
+                        response = client.execute(request, new BasicHttpContext());
+                        responseReceived(download, requestStart);
+                    }
+                    try {
+                        checkRetryLater(response);
+                        checkPartial(download, response);
+                        if (!checkRange(segment, cursor, response)) {
+                            // the part is after the end of the file
+                            return;
+                        }
+                        long responseFrom = cursor.getPosition();
+                        Checksum checksum = verificationEnabled ? Checksum.ofContent(response) : null;
+                        MessageDigest digest = checksum != null ? checksum.newDigest() : null;
+                        HttpEntity entity = response.getEntity();
+                        // todo long contentLength = entity.getContentLength();
+                        InputStream content = entity.getContent();
+
+                        ByteBuffer buffer = buffers.acquire();
+                        int bc;
+                        do {
+                            bc = content.read(buffer.array());
+                            if (bc > 0) {
+                                int length = (int) Math.min(bc, cursor.getEnd() - cursor.getPosition());
+                                if (length > 0) {
+                                    throttle(download, length);
+                                    buffer.limit(length);
+                                    long offset = cursor.getPosition();
+                                    ByteBuffer data = buffer.duplicate();
+                                    download.getStorage().write(offset, buffer);
+                                    addProgress(download, cursor, length);
+                                    if (digest != null) {
+                                        digest.update(data.duplicate());
+                                    }
+                                    written(download, offset, data);
+                                    buffer.clear();
+                                }
+                                if (length < bc) {
+                                    // part was split, the rest is downloaded by another worker
+                                    return;
+                                }
+                                if (scheduler.tryRetire(segment)) {
+                                    // pool was shrunk, the rest of the part is scheduled again
+                                    return;
+                                }
                             }
+                        } while (bc != -1);
+                        if (digest != null && !checksum.matches(digest.digest())) {
+                            // digest covers the whole response, so all of it is downloaded again
+                            rewind(download, cursor, responseFrom);
+                            throw new IOException(checksum.getAlgorithm() + " digest of " + responseFrom + "-"
+                                    + cursor.getEnd() + " doesn't match");
                         }
-                    } while (bc != -1);
+                    } finally {
+                        release(response);
+                        response = null;
+                    }
+                } catch (RequestAbortedException | ClosedByInterruptException ignored) {
+                    // probably pool resize
+                    Thread.currentThread().interrupt();
                     return;
-                } finally {
-                    response.close();
-                }
-            } catch (RequestAbortedException ignored) {
-                // probably pool resize
-                return;
-            } catch (IOException e) {
-                if (tryCount++ < MAX_RETRY_COUNT) {
-                    continue;
+                } catch (IOException e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    if (tryCount++ < MAX_RETRY_COUNT) {
+                        download.getMetrics().retried();
+                        continue;
+                    }
+                    throw new DownloadFailedException(e);
                 }
-                throw new DownloadFailedException(e);
             }
+        } finally {
+            long downloaded = cursor.getPosition() - from;
+            planner.recordSegment(download.getHost(), downloaded, System.nanoTime() - start);
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info(download.getUrl() + ": " + from + "-" + cursor.getPosition() + " downloaded.");
+            }
+        }
+    }
+
+    private DownloadStorage createStorage(String filename, long size) {
+        if (writeMode == WriteMode.Mapped && size > 0) {
+            return new MappedStorage(filename, size);
+        }
+        return executionMode == ExecutionMode.Async ? new AsyncChannelStorage(filename) : new ChannelStorage(filename);
+    }
+
+    /**
+     * Restores progress of a download from existing journal if it matches the file on server.
+     * @return whether progress was restored.
+     */
+    private boolean resumeFromJournal(Download download) throws IOException {
+        File journal = ProgressJournal.journalFile(download.getFilename());
+        if (!journalEnabled || !journal.exists()) {
+            return false;
+        }
+
+        ProgressJournal.Entry entry = ProgressJournal.read(journal);
+        if (entry == null
+                || !entry.getUrl().equals(download.getUrl())
+                || entry.getSize() != download.getSize()
+                || !Objects.equals(entry.getETag(), download.getETag())
+                || !Objects.equals(entry.getLastModified(), download.getLastModified())
+                || !holdsParts(new File(download.getFilename()), entry)) {
+            return false;
         }
+
+        restoreProgress(download, entry);
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info(download.getUrl() + ": resuming, " + download.getAbsoluteCompletion() + " bytes already downloaded.");
+        }
+        return true;
+    }
+
+    private void restoreProgress(Download download, ProgressJournal.Entry entry) {
+        for (MultipartProgress.ProgressPart part : entry.getParts()) {
+            download.addProgress(part.getFrom(), part.getTo() - part.getFrom());
+        }
+        download.setJournal(ProgressJournal.open(download, entry));
     }
 
-    private void preallocateFile(String absolute, int contentLength) throws IOException {
+    private void preallocateFile(String absolute, long contentLength) throws IOException {
         FileUtils.touch(new File(absolute));
         try (RandomAccessFile raf = new RandomAccessFile(absolute, "rw")) {
-            raf.setLength(contentLength);
+            // without preallocation the file grows as parts are written
+            raf.setLength(preallocation == Preallocation.None ? 0 : contentLength);
+        }
+    }
+
+    /**
+     * Starts background allocation of disk space for a file downloaded in parts if it's enabled,
+     * see {@link Preallocation#Full}.
+     */
+    private void startAllocation(Download download) {
+        if (preallocation != Preallocation.Full) {
+            return;
+        }
+        FileAllocator allocator = new FileAllocator(download);
+        download.setAllocator(allocator);
+        allocators.execute(allocator);
+    }
+
+    private static void stopAllocation(Download download) {
+        FileAllocator allocator = download.getAllocator();
+        if (allocator != null) {
+            allocator.stop();
+            download.setAllocator(null);
+        }
+    }
+
+    /**
+     * Fails if there is less usable space in the download directory than bytes left to download.
+     */
+    private static void checkFreeSpace(Download download) throws IOException {
+        long required = download.getSize() - download.getAbsoluteCompletion();
+        File directory = new File(download.getFilename()).getParentFile();
+        // usable space is unknown for a missing directory
+        if (directory.exists() && directory.getUsableSpace() < required) {
+            throw new IOException("Not enough space for " + download.getFilename() + ": " + required
+                    + " bytes required, " + directory.getUsableSpace() + " bytes available");
         }
     }
 
-    private String evaluateFilename(HttpHead request, HttpResponse response) {
+    /**
+     * @return whether the file holds all parts of the journal, it's shorter than its size without preallocation.
+     */
+    private static boolean holdsParts(File file, ProgressJournal.Entry entry) {
+        List<MultipartProgress.ProgressPart> parts = entry.getParts();
+        long end = parts.stream().mapToLong(MultipartProgress.ProgressPart::getTo).max().orElse(0);
+        return file.length() >= end && file.length() <= entry.getSize();
+    }
+
+    private String evaluateFilename(HttpUriRequest request, HttpResponse response) {
         File filename = new File(request.getURI().getPath());
 
         /** fixme Content-Disposition may offer a better name. */
@@ -284,89 +1650,108 @@ public class Downloader {
     }
 
     public void stopAll() {
-        pool.shutdownNow();
-        pool = new ForkJoinPool(threadsNumber);
+        List<Download> idle = scheduler.clear();
+        stopWorkers(true);
+        idle.forEach(this::finish);
         running = false;
     }
 
     public void waitAll() throws InterruptedException {
-        pool.shutdown();
-        while (!pool.awaitTermination(500, TimeUnit.MILLISECONDS)) {
+        scheduler.awaitIdle();
+        ExecutorService workers = pool;
+        stopWorkers(false);
+        // the last released segment may still be finishing its download
+        while (!workers.awaitTermination(500, TimeUnit.MILLISECONDS)) {
         }
         running = false;
     }
 
-    private class DownloadJob extends RecursiveAction {
-        private final Download download;
-
-        private DownloadJob(Download download) {
-            this.download = download;
+    /**
+     * Stops all downloads and releases threads and connections of this instance, including the async engine and
+     * the HTTP client created by {@link #Downloader(File)}. A client passed to the constructor is left open,
+     * since it's owned by the caller. The instance can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        stopAll();
+        if (asyncEngine != null) {
+            asyncEngine.close();
+            asyncEngine = null;
         }
-
-        @Override
-        protected void compute() {
+        pool.shutdownNow();
+        allocators.shutdownNow();
+        progressDispatcher.close();
+        unregisterMBeans();
+        // connection manager is known only for the client built by this instance
+        if (connectionManager != null && client instanceof Closeable) {
             try {
-                if (download.getState() == Download.State.Ready && download.getSize() != Download.UNKNOWN_SIZE) {
-                    List<DownloadPartJob> jobs = new ArrayList<>();
-                    for (MultipartProgress.ProgressPart missingPart : download.getMissingParts()) {
-                        jobs.add(new DownloadPartJob(missingPart.getFrom(), missingPart.getTo()));
-                    }
-                    invokeAll(jobs.toArray(new DownloadPartJob[0]));
-                    return;
-                }
-
-                prepare(download);
-
-                if (download.getState() == Download.State.Error) {
-                    return;
-                }
-
-                if (download.getSize() == Download.UNKNOWN_SIZE) {
-                    // size is unknown, download sequentially.
-                    try {
-                        download(download);
-                    } catch (DownloadFailedException e) {
-                        LOGGER.warn(download.getUrl(), e);
-                        setDownloadState(download, Download.State.Error);
-                    }
-                    return;
-                }
-
-                invokeAll(new DownloadPartJob(0, download.getSize()));
-            } finally {
-                if (download.isComplete()) {
-                    setDownloadState(download, Download.State.Finished);
-                }
+                ((Closeable) client).close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close HTTP client", e);
             }
         }
+    }
 
-        private class DownloadPartJob extends RecursiveAction {
-            private final long from;
-            private final long to;
+    /**
+     * Threads which run workers. Every worker downloads one segment at a time, so number of threads limits
+     * number of concurrent connections, see {@link #setThreadsNumber(int)}.
+     */
+    public enum ExecutionMode {
+        /**
+         * Pool of platform threads, one per worker.
+         */
+        Pool,
+        /**
+         * Virtual thread per worker. Workers spend most of the time blocked in socket reads, so hundreds
+         * of them may run on a few cores. Requires Java 21 or later.
+         */
+        VirtualThreads,
+        /**
+         * Non-blocking I/O of an asynchronous HTTP client driven by a few I/O threads. Number of threads
+         * limits number of segments in progress, no thread is blocked by any of them.
+         */
+        Async;
 
-            public DownloadPartJob(long from, long to) {
-                this.from = from;
-                this.to = to;
-            }
+        /**
+         * @return whether the mode is supported by the running JVM.
+         */
+        public boolean isSupported() {
+            return this != VirtualThreads || VirtualThreadSupport.isSupported();
+        }
+    }
 
-            @Override
-            protected void compute() {
-                if (to - from <= MIN_PART_SIZE) {
-                    try {
-                        downloadPart(download, from, to);
-                        if (LOGGER.isInfoEnabled()) {
-                            LOGGER.info(download.getUrl() + ": " + from + "-" + to + " downloaded.");
-                        }
-                    } catch (DownloadFailedException e) {
-                        LOGGER.warn(download.getUrl(), e);
-                        setDownloadState(download, Download.State.Error);
-                    }
-                    return;
-                }
+    /**
+     * Ways to reserve disk space for files with known size.
+     */
+    public enum Preallocation {
+        /**
+         * File is extended to its size without allocating disk space. Parts written at scattered offsets
+         * fragment the file.
+         */
+        Sparse,
+        /**
+         * File is extended to its size and its disk space is allocated in background by writing zeros in file
+         * order, skipping downloaded ranges. Files downloaded sequentially are written in order anyway,
+         * so they're only extended.
+         */
+        Full,
+        /**
+         * File grows as parts are written.
+         */
+        None
+    }
 
-                long mid = (from + to) >>> 1;
-                invokeAll(new DownloadPartJob(from, mid), new DownloadPartJob(mid, to));
-            }
-        }
+    /**
+     * Ways to write downloaded bytes to files.
+     */
+    public enum WriteMode {
+        /**
+         * Positional writes through a {@link java.nio.channels.FileChannel}.
+         */
+        Stream,
+        /**
+         * Copying into memory mapped regions of the preallocated file.
+         */
+        Mapped
     }
 }
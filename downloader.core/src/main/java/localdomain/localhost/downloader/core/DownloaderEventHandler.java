@@ -19,4 +19,15 @@ public interface DownloaderEventHandler {
      */
     default void progressChanged(Download download) {
     }
+
+    /**
+     * Invoked then {@link Download} progress is changed. Changes are coalesced, so it's invoked at most
+     * {@link Downloader#setProgressEventsRate(int)} times per second for a download, from a dedicated thread.
+     * Delegates to {@link #progressChanged(Download)} by default.
+     * @param download
+     * @param snapshot state of the progress at the moment of the event.
+     */
+    default void progressChanged(Download download, ProgressSnapshot snapshot) {
+        progressChanged(download);
+    }
 }
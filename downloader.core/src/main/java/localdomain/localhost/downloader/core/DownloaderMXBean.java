@@ -0,0 +1,21 @@
+package localdomain.localhost.downloader.core;
+
+/**
+ * Metrics of all downloads of a {@link Downloader} and state of its pools exported through JMX.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public interface DownloaderMXBean extends DownloadMXBean {
+    int getActiveDownloads();
+
+    /**
+     * @return number of ranges and downloads waiting for a thread or connection.
+     */
+    int getQueuedSegments();
+
+    int getLeasedConnections();
+
+    int getPendingConnections();
+
+    int getAvailableConnections();
+}
@@ -0,0 +1,90 @@
+package localdomain.localhost.downloader.core;
+
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Totals of all downloads of a {@link Downloader} and gauges of its queue and connection pool.
+ * Measurements are also passed to a {@link MetricsRecorder}, so they can be exported to a metrics registry.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public class DownloaderMetrics extends DownloadMetrics implements DownloaderMXBean {
+    private final Downloader downloader;
+    private volatile MetricsRecorder recorder = MetricsRecorder.NONE;
+
+    DownloaderMetrics(Downloader downloader) {
+        super(null, null);
+        this.downloader = downloader;
+    }
+
+    /**
+     * @param recorder receiver of measurements of all downloads, see {@link MetricsRecorder}.
+     */
+    public void setRecorder(MetricsRecorder recorder) {
+        this.recorder = recorder != null ? recorder : MetricsRecorder.NONE;
+    }
+
+    void bytesReceived(Download download, int bytes) {
+        bytesReceived.add(bytes);
+        recorder.bytesReceived(download, bytes);
+    }
+
+    void responseReceived(Download download, long nanos) {
+        timeToFirstByte.record(nanos);
+        recorder.responseReceived(download, nanos);
+    }
+
+    void segmentStarted(Download download) {
+        activeSegments.incrementAndGet();
+        recorder.segmentStarted(download);
+    }
+
+    void segmentFinished(Download download, long nanos) {
+        activeSegments.decrementAndGet();
+        segmentDuration.record(nanos);
+        recorder.segmentFinished(download, nanos);
+    }
+
+    void retried(Download download) {
+        retries.increment();
+        recorder.retried(download);
+    }
+
+    void synced(Download download, long bytes) {
+        bytesPerSync.record(bytes);
+        recorder.synced(download, bytes);
+    }
+
+    void progressBlocked(Download download, long nanos) {
+        progressBlocked.add(nanos);
+        recorder.progressBlocked(download, nanos);
+    }
+
+    @Override
+    public int getActiveDownloads() {
+        return downloader.getActiveDownloads();
+    }
+
+    @Override
+    public int getQueuedSegments() {
+        return downloader.getQueuedSegments();
+    }
+
+    @Override
+    public int getLeasedConnections() {
+        PoolStats stats = downloader.getConnectionPoolStats();
+        return stats != null ? stats.getLeased() : 0;
+    }
+
+    @Override
+    public int getPendingConnections() {
+        PoolStats stats = downloader.getConnectionPoolStats();
+        return stats != null ? stats.getPending() : 0;
+    }
+
+    @Override
+    public int getAvailableConnections() {
+        PoolStats stats = downloader.getConnectionPoolStats();
+        return stats != null ? stats.getAvailable() : 0;
+    }
+}
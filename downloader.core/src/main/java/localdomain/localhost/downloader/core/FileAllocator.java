@@ -0,0 +1,72 @@
+package localdomain.localhost.downloader.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Allocates disk space of a file downloaded in parts by writing zeros over it in file order, so file system
+ * lays the file out in order instead of the order parts arrive in. Ranges which are downloaded or being
+ * downloaded are skipped, see {@link MultipartProgress#writeFree(long, long, MultipartProgress.RangeWriter)}.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class FileAllocator implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileAllocator.class);
+    static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final Download download;
+    private final String filename;
+    private final long size;
+    private boolean stopped;
+
+    FileAllocator(Download download) {
+        this.download = download;
+        this.filename = download.getFilename();
+        this.size = download.getSize();
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE)) {
+            for (long position = 0; position < size; position += CHUNK_SIZE) {
+                if (!allocate(channel, zeros, position, Math.min(size, position + CHUNK_SIZE))) {
+                    return;
+                }
+            }
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info(download.getUrl() + ": " + size + " bytes allocated.");
+            }
+        } catch (IOException e) {
+            LOGGER.warn(download.getUrl() + ": failed to allocate " + filename, e);
+        }
+    }
+
+    private synchronized boolean allocate(FileChannel channel, ByteBuffer zeros, long from, long to) throws IOException {
+        if (stopped) {
+            return false;
+        }
+        download.writeFree(from, to, (freeFrom, freeTo) -> {
+            zeros.clear();
+            zeros.limit((int) (freeTo - freeFrom));
+            long position = freeFrom;
+            while (zeros.hasRemaining()) {
+                position += channel.write(zeros, position);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Stops allocation, nothing is written after the method returns.
+     */
+    synchronized void stop() {
+        stopped = true;
+    }
+}
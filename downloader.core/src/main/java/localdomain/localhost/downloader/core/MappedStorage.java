@@ -0,0 +1,109 @@
+package localdomain.localhost.downloader.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@link DownloadStorage} copying bytes straight into memory mapped windows of a preallocated file.
+ * Windows are mapped lazily, so parts of the file which are never written aren't mapped at all.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class MappedStorage implements DownloadStorage {
+    static final int WINDOW_SIZE = 1 << 30;
+
+    private final String filename;
+    private final long size;
+    private final int windowSize;
+    /**
+     * Mapped windows are read without locking, so parts writing to the same window don't contend.
+     * The array is replaced on {@link #close(boolean)}.
+     */
+    private volatile AtomicReferenceArray<MappedByteBuffer> windows;
+    /**
+     * A window is mapped under its own lock, so it's mapped once even if several parts reach it at the same time.
+     */
+    private final Object[] locks;
+
+    MappedStorage(String filename, long size) {
+        this(filename, size, WINDOW_SIZE);
+    }
+
+    MappedStorage(String filename, long size, int windowSize) {
+        this.filename = filename;
+        this.size = size;
+        this.windowSize = windowSize;
+        this.windows = newWindows();
+        this.locks = new Object[windows.length()];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    private AtomicReferenceArray<MappedByteBuffer> newWindows() {
+        return new AtomicReferenceArray<>((int) ((size + windowSize - 1) / windowSize));
+    }
+
+    private MappedByteBuffer getWindow(int index) throws IOException {
+        MappedByteBuffer window = windows.get(index);
+        if (window != null) {
+            return window;
+        }
+        synchronized (locks[index]) {
+            AtomicReferenceArray<MappedByteBuffer> windows = this.windows;
+            window = windows.get(index);
+            if (window == null) {
+                long from = (long) index * windowSize;
+                long length = Math.min(windowSize, size - from);
+                try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    // mapping stays valid after channel is closed
+                    window = channel.map(FileChannel.MapMode.READ_WRITE, from, length);
+                }
+                windows.set(index, window);
+            }
+            return window;
+        }
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer source) throws IOException {
+        int length = source.remaining();
+        if (offset < 0 || offset + length > size) {
+            throw new IOException("Write of " + length + " bytes at " + offset + " is out of file bounds " + size);
+        }
+        int limit = source.limit();
+        long position = offset;
+        while (source.hasRemaining()) {
+            int index = (int) (position / windowSize);
+            int windowOffset = (int) (position % windowSize);
+
+            ByteBuffer slice = getWindow(index).duplicate();
+            slice.position(windowOffset);
+            int count = Math.min(source.remaining(), slice.remaining());
+            source.limit(source.position() + count);
+            slice.put(source);
+            source.limit(limit);
+            position += count;
+        }
+    }
+
+    @Override
+    public synchronized void close(boolean force) throws IOException {
+        AtomicReferenceArray<MappedByteBuffer> windows = this.windows;
+        if (force) {
+            for (int i = 0; i < windows.length(); i++) {
+                MappedByteBuffer window = windows.get(i);
+                if (window != null) {
+                    window.force();
+                }
+            }
+        }
+        // there is no public unmap, buffers are released by GC
+        this.windows = newWindows();
+    }
+}
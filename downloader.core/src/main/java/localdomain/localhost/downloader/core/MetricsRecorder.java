@@ -0,0 +1,47 @@
+package localdomain.localhost.downloader.core;
+
+/**
+ * Receives measurements of a {@link Downloader} as they are taken, so they can be passed to a metrics registry,
+ * see {@link DownloaderMetrics#setRecorder(MetricsRecorder)}. Methods are called from transfer threads,
+ * including I/O threads of {@link Downloader.ExecutionMode#Async}, so they must be cheap and must not block.
+ * Durations are in nanoseconds.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public interface MetricsRecorder {
+    MetricsRecorder NONE = new MetricsRecorder() {
+    };
+
+    default void bytesReceived(Download download, int bytes) {
+    }
+
+    /**
+     * @param nanos time from sending the request to receiving response headers.
+     */
+    default void responseReceived(Download download, long nanos) {
+    }
+
+    default void segmentStarted(Download download) {
+    }
+
+    /**
+     * @param nanos time from starting the segment, including retries and failed attempts.
+     */
+    default void segmentFinished(Download download, long nanos) {
+    }
+
+    default void retried(Download download) {
+    }
+
+    /**
+     * @param bytes bytes received since the file was flushed to the storage device last time.
+     */
+    default void synced(Download download, long bytes) {
+    }
+
+    /**
+     * @param nanos time spent waiting for a lock of {@link MultipartProgress}.
+     */
+    default void progressBlocked(Download download, long nanos) {
+    }
+}
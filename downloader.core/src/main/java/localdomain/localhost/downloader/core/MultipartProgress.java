@@ -1,81 +1,484 @@
 package localdomain.localhost.downloader.core;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * Set of downloaded ranges of a file. Ranges are kept merged in an interval map keyed by range start,
+ * so adding progress is O(log n) and total progress is maintained incrementally.
+ *
+ * Parts being downloaded report progress through {@link Cursor}s without locking, their ranges are merged
+ * into the map lazily, when completed or missing parts are requested. Remaining range of a cursor may be
+ * split to be downloaded by another worker, see {@link #splitLargest(long)}.
+ *
  * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
  */
 public class MultipartProgress {
-    private final TreeSet<ProgressPart> parts = new TreeSet<>();
-    private final long size;
+    /**
+     * Range start to range end (exclusive).
+     */
+    private final TreeMap<Long, Long> parts = new TreeMap<>();
+    /**
+     * Size of the file or {@link Download#UNKNOWN_SIZE} until the end of the file is found, see {@link #limitSize(long)}.
+     */
+    private volatile long size;
+    private final boolean openEnded;
+    private volatile long completed;
+    private final Set<Cursor> cursors = ConcurrentHashMap.newKeySet();
+    /**
+     * Guards the interval map.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Held while cursors are opened and while free ranges are written, see {@link #writeFree(long, long, RangeWriter)}.
+     */
+    private final ReentrantLock freeRangesLock = new ReentrantLock();
+    /**
+     * Receives time spent waiting for the locks, may be {@code null}.
+     */
+    private final DownloadMetrics metrics;
 
     public MultipartProgress(long size) {
+        this(size, null);
+    }
+
+    MultipartProgress(long size, DownloadMetrics metrics) {
         this.size = size;
+        this.openEnded = size == Download.UNKNOWN_SIZE;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Acquires the lock, time is measured only if it's contended.
+     */
+    private void lock(ReentrantLock lock) {
+        if (lock.tryLock()) {
+            return;
+        }
+        long start = System.nanoTime();
+        lock.lock();
+        if (metrics != null) {
+            metrics.progressBlocked(System.nanoTime() - start);
+        }
     }
 
     public long getSize() {
         return size;
     }
 
-    public synchronized long getAbsoluteProgress() {
-        return parts.stream().mapToLong(p -> p.to - p.from).sum();
+    /**
+     * @return whether size of the file wasn't known when the download started.
+     */
+    boolean isOpenEnded() {
+        return openEnded;
     }
 
-    public synchronized double getProgress() {
+    public long getAbsoluteProgress() {
+        // total is read before cursors, so concurrent merge can't count the same bytes twice
+        long absoluteProgress = completed;
+        for (Cursor cursor : cursors) {
+            absoluteProgress += cursor.position - cursor.merged;
+        }
+        return absoluteProgress;
+    }
+
+    public double getProgress() {
         long absoluteProgress = getAbsoluteProgress();
-        return absoluteProgress == 0 ? 0.0 : absoluteProgress / (double)size;
+        long size = this.size;
+        return absoluteProgress == 0 || size == Download.UNKNOWN_SIZE ? 0.0 : absoluteProgress / (double)size;
+    }
+
+    public boolean isComplete() {
+        lock(lock);
+        try {
+            mergeCursors();
+            return completed == size && (size == 0 || parts.size() == 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the size of a file which wasn't known or lowers it when the end of the file is found closer.
+     * Cursors are stopped at the new end.
+     * @return whether the size is changed.
+     */
+    boolean limitSize(long end) {
+        lock(lock);
+        try {
+            if (size != Download.UNKNOWN_SIZE && size <= end) {
+                return false;
+            }
+            size = end;
+            for (Cursor cursor : cursors) {
+                cursor.limit(end);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts tracking a part being downloaded.
+     */
+    Cursor openCursor(long from, long to) {
+        Cursor cursor = new Cursor(from, to);
+        lock(freeRangesLock);
+        try {
+            cursors.add(cursor);
+        } finally {
+            freeRangesLock.unlock();
+        }
+        // size is read after the cursor is added, so it's limited here or by limitSize
+        long size = this.size;
+        if (size != Download.UNKNOWN_SIZE) {
+            cursor.limit(size);
+        }
+        return cursor;
+    }
+
+    /**
+     * Passes ranges between {@code from} and {@code to} which are neither downloaded nor being downloaded
+     * to the writer. Cursors aren't opened until the writer returns, so nothing else writes to the ranges meanwhile.
+     */
+    void writeFree(long from, long to, RangeWriter writer) throws IOException {
+        lock(freeRangesLock);
+        try {
+            for (ProgressPart free : getFreeParts(from, to)) {
+                writer.write(free.getFrom(), free.getTo());
+            }
+        } finally {
+            freeRangesLock.unlock();
+        }
+    }
+
+    private List<ProgressPart> getFreeParts(long from, long to) {
+        lock(lock);
+        try {
+            mergeCursors();
+            // downloaded parts and remaining ranges of cursors
+            List<ProgressPart> taken = new ArrayList<>();
+            Map.Entry<Long, Long> floor = parts.floorEntry(from);
+            if (floor != null && floor.getValue() > from) {
+                taken.add(new ProgressPart(floor.getKey(), floor.getValue()));
+            }
+            for (Map.Entry<Long, Long> part : parts.subMap(from, to).entrySet()) {
+                taken.add(new ProgressPart(part.getKey(), part.getValue()));
+            }
+            for (Cursor cursor : cursors) {
+                // bytes written after the merge are neither in parts nor before the position read now,
+                // so remaining range starts where the merge stopped
+                long merged = cursor.merged;
+                if (merged < cursor.end) {
+                    taken.add(new ProgressPart(merged, cursor.end));
+                }
+            }
+            Collections.sort(taken);
+
+            List<ProgressPart> free = new ArrayList<>();
+            long position = from;
+            for (ProgressPart part : taken) {
+                if (part.getFrom() > position && position < to) {
+                    free.add(new ProgressPart(position, Math.min(part.getFrom(), to)));
+                }
+                position = Math.max(position, part.getTo());
+            }
+            if (position < to) {
+                free.add(new ProgressPart(position, to));
+            }
+            return free;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cuts the largest remaining range of active cursors in half. Owner of the cursor stops at the new boundary.
+     * @param minSize minimal size of both halves.
+     * @return second half of the range to be downloaded by caller or {@code null} if there is nothing to split.
+     */
+    ProgressPart splitLargest(long minSize) {
+        while (true) {
+            Cursor largest = null;
+            long largestRemaining = 0;
+            for (Cursor cursor : cursors) {
+                long remaining = cursor.end - cursor.position;
+                if (remaining > largestRemaining) {
+                    largest = cursor;
+                    largestRemaining = remaining;
+                }
+            }
+            if (largest == null || largestRemaining < 2 * minSize) {
+                return null;
+            }
+
+            long end = largest.end;
+            long position = largest.position;
+            long mid = position + (end - position) / 2;
+            if (mid - position >= minSize && Cursor.END.compareAndSet(largest, end, mid)) {
+                return new ProgressPart(mid, end);
+            }
+            // cursor moved or was split concurrently, looking again
+        }
+    }
+
+    /**
+     * Moves ends of all cursors to their positions, so their owners stop as if their ranges were split.
+     */
+    void stopCursors() {
+        for (Cursor cursor : cursors) {
+            long end;
+            while ((end = cursor.end) > cursor.position && !Cursor.END.compareAndSet(cursor, end, cursor.position)) {
+                // cursor moved concurrently
+            }
+        }
+    }
+
+    /**
+     * Merges progress of the cursor and stops tracking it.
+     */
+    void closeCursor(Cursor cursor) {
+        lock(lock);
+        try {
+            merge(cursor);
+            cursors.remove(cursor);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void mergeCursors() {
+        for (Cursor cursor : cursors) {
+            merge(cursor);
+        }
+    }
+
+    private void merge(Cursor cursor) {
+        long position = cursor.position;
+        long merged = cursor.merged;
+        if (position > merged) {
+            // cursor is updated before total, see getAbsoluteProgress
+            cursor.merged = position;
+            add(merged, position - merged);
+        }
     }
 
-    public synchronized boolean isComplete() {
-        return parts.size() == 1 && parts.first().from == 0 && parts.first().to == size;
+    /**
+     * Moves the cursor back, so downloaded bytes after the position are downloaded again.
+     */
+    void rewind(Cursor cursor, long position) {
+        lock(lock);
+        try {
+            if (cursor.merged > position) {
+                remove(position, cursor.merged);
+                cursor.merged = position;
+            }
+            cursor.position = position;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(long from, long to) {
+        Map.Entry<Long, Long> floor = parts.floorEntry(from);
+        if (floor != null && floor.getValue() > from) {
+            // cutting the tail of preceding part
+            parts.put(floor.getKey(), from);
+            completed -= floor.getValue() - from;
+            if (floor.getValue() > to) {
+                parts.put(to, floor.getValue());
+                completed += floor.getValue() - to;
+            }
+        }
+
+        Map.Entry<Long, Long> next;
+        while ((next = parts.ceilingEntry(from)) != null && next.getKey() < to) {
+            parts.remove(next.getKey());
+            completed -= next.getValue() - next.getKey();
+            if (next.getValue() > to) {
+                parts.put(to, next.getValue());
+                completed += next.getValue() - to;
+            }
+        }
     }
 
-    public synchronized void addProgress(long offset, long length) {
+    /**
+     * @return end of the completed range which contains the offset or the offset if it isn't completed.
+     */
+    long getCompletedEnd(long offset) {
+        lock(lock);
+        try {
+            mergeCursors();
+            Map.Entry<Long, Long> floor = parts.floorEntry(offset);
+            return floor != null && floor.getValue() > offset ? floor.getValue() : offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return first completed offset at or after the offset or {@link Long#MAX_VALUE} if there is none.
+     */
+    long getCompletedStart(long offset) {
+        lock(lock);
+        try {
+            mergeCursors();
+            Map.Entry<Long, Long> floor = parts.floorEntry(offset);
+            if (floor != null && floor.getValue() > offset) {
+                return offset;
+            }
+            Map.Entry<Long, Long> ceiling = parts.ceilingEntry(offset);
+            return ceiling != null ? ceiling.getKey() : Long.MAX_VALUE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void addProgress(long offset, long length) {
+        lock(lock);
+        try {
+            add(offset, length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(long offset, long length) {
+        if (length <= 0) {
+            return;
+        }
         long from = offset;
         long to = offset + length;
+        long delta = 0;
 
-        Iterator<ProgressPart> iterator = parts.iterator();
-        while (iterator.hasNext()) {
-            ProgressPart part = iterator.next();
-
-            if (from <= part.from && to >= part.to) {
-                // overwriting existing progress
-                iterator.remove();
-            } else if (from >= part.from && to <= part.to) {
+        Map.Entry<Long, Long> floor = parts.floorEntry(from);
+        if (floor != null && floor.getValue() >= from) {
+            if (floor.getValue() >= to) {
                 // useless progress
                 return;
-            } else if (from <= part.from && to >= part.from) {
-                // partial overwrite or merge
-                to = part.to;
-                iterator.remove();
-            } else if (part.from <= from && part.to >= from) {
-                // partial overwrite or merge
-                from = part.from;
-                iterator.remove();
             }
+            // partial overwrite or merge with preceding part
+            from = floor.getKey();
+            parts.remove(from);
+            delta -= floor.getValue() - floor.getKey();
+        }
+
+        Map.Entry<Long, Long> next;
+        while ((next = parts.ceilingEntry(from)) != null && next.getKey() <= to) {
+            // overwriting or merging following parts
+            to = Math.max(to, next.getValue());
+            parts.remove(next.getKey());
+            delta -= next.getValue() - next.getKey();
         }
 
         // adding new or merged part
-        parts.add(new ProgressPart(from, to));
+        parts.put(from, to);
+        completed += delta + (to - from);
+    }
+
+    public List<ProgressPart> getCompletedParts() {
+        lock(lock);
+        try {
+            mergeCursors();
+            List<ProgressPart> result = new ArrayList<>(parts.size());
+            for (Map.Entry<Long, Long> part : parts.entrySet()) {
+                result.add(new ProgressPart(part.getKey(), part.getValue()));
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized List<ProgressPart> getMissingParts() {
-        List<ProgressPart> result = new ArrayList<>();
+    public List<ProgressPart> getMissingParts() {
+        lock(lock);
+        try {
+            mergeCursors();
+            List<ProgressPart> result = new ArrayList<>();
 
-        long from = 0;
-        for (ProgressPart part : parts) {
-            result.add(new ProgressPart(from, part.from));
-            from = part.to;
+            long from = 0;
+            for (Map.Entry<Long, Long> part : parts.entrySet()) {
+                if (part.getKey() > from) {
+                    result.add(new ProgressPart(from, part.getKey()));
+                }
+                from = part.getValue();
+            }
+
+            // end of a file with unknown size isn't found yet, so the rest of it is missing
+            long end = size == Download.UNKNOWN_SIZE ? Long.MAX_VALUE : size;
+            if (from != end) {
+                result.add(new ProgressPart(from, end));
+            }
+
+            return result;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        if (from != size) {
-            result.add(new ProgressPart(from, size));
+    /**
+     * Writes a range of a file, see {@link #writeFree(long, long, RangeWriter)}.
+     */
+    interface RangeWriter {
+        void write(long from, long to) throws IOException;
+    }
+
+    /**
+     * Position of a part being downloaded by a single worker. Only owning worker advances it.
+     */
+    static final class Cursor {
+        private static final AtomicLongFieldUpdater<Cursor> POSITION =
+                AtomicLongFieldUpdater.newUpdater(Cursor.class, "position");
+        private static final AtomicLongFieldUpdater<Cursor> END =
+                AtomicLongFieldUpdater.newUpdater(Cursor.class, "end");
+
+        private volatile long position;
+        /**
+         * Start of the range which isn't merged into progress yet, updated under the progress lock.
+         */
+        private volatile long merged;
+        /**
+         * End of the range (exclusive), may only decrease when the range is split.
+         */
+        private volatile long end;
+
+        private Cursor(long from, long to) {
+            this.position = from;
+            this.merged = from;
+            this.end = to;
+        }
+
+        long getPosition() {
+            return position;
         }
 
-        return result;
+        long getEnd() {
+            return end;
+        }
+
+        /**
+         * Moves the end back to the offset or to the position if it's already passed.
+         */
+        private void limit(long offset) {
+            long end;
+            while ((end = this.end) > offset && !END.compareAndSet(this, end, Math.max(offset, position))) {
+                // cursor was split concurrently
+            }
+        }
+
+        void advance(long length) {
+            // single writer, so ordered store is enough
+            POSITION.lazySet(this, position + length);
+        }
     }
 
     public static class ProgressPart implements Comparable<ProgressPart> {
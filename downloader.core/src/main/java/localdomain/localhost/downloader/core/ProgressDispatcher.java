@@ -0,0 +1,168 @@
+package localdomain.localhost.downloader.core;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Coalesces progress changes reported by workers and delivers at most configured number of events per second
+ * for each download, from a dedicated thread. Listener receives {@link ProgressSnapshot}s, so it never needs
+ * to read state which is being updated by workers.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class ProgressDispatcher {
+    private static final double SMOOTHING = 0.3;
+
+    private final BiConsumer<Download, ProgressSnapshot> listener;
+    private final Set<Download> changed = ConcurrentHashMap.newKeySet();
+    private final Map<Download, Rate> rates = new ConcurrentHashMap<>();
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> task;
+    private int eventsPerSecond;
+    private boolean closed;
+
+    ProgressDispatcher(BiConsumer<Download, ProgressSnapshot> listener, int eventsPerSecond) {
+        this.listener = listener;
+        this.eventsPerSecond = eventsPerSecond;
+    }
+
+    /**
+     * Changes events rate, applied right away.
+     */
+    synchronized void setEventsPerSecond(int eventsPerSecond) {
+        if (eventsPerSecond <= 0) {
+            throw new IllegalArgumentException("Events rate should be positive: " + eventsPerSecond);
+        }
+        this.eventsPerSecond = eventsPerSecond;
+        if (task != null && !closed) {
+            task.cancel(false);
+            schedule();
+        }
+    }
+
+    /**
+     * Marks download progress as changed, cheap enough to be called for every transferred buffer.
+     */
+    void progressChanged(Download download) {
+        // contains doesn't lock, unlike add of existing element
+        if (!changed.contains(download)) {
+            changed.add(download);
+            start();
+        }
+    }
+
+    /**
+     * Delivers pending change of the download without waiting for the next tick.
+     * @param last whether the download is finished or failed, its rate is forgotten after the change is delivered.
+     */
+    void flush(Download download, boolean last) {
+        if (changed.contains(download)) {
+            tickNow();
+        }
+        if (last) {
+            forget(download);
+        }
+    }
+
+    private synchronized void tickNow() {
+        if (start()) {
+            executor.execute(this::tick);
+        }
+    }
+
+    private synchronized void forget(Download download) {
+        if (executor != null && !closed) {
+            // after the tick delivering its last change
+            executor.execute(() -> rates.remove(download));
+        } else {
+            rates.remove(download);
+        }
+    }
+
+    /**
+     * @return whether events are delivered, i.e. the dispatcher isn't closed.
+     */
+    private synchronized boolean start() {
+        if (closed) {
+            return false;
+        }
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "downloader-progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+            schedule();
+        }
+        return true;
+    }
+
+    /**
+     * Stops delivering events, pending changes are dropped.
+     */
+    synchronized void close() {
+        closed = true;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void schedule() {
+        long period = TimeUnit.SECONDS.toNanos(1) / eventsPerSecond;
+        task = executor.scheduleAtFixedRate(this::tick, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Delivers snapshots of all changed downloads.
+     */
+    void tick() {
+        long now = System.nanoTime();
+        Iterator<Download> iterator = changed.iterator();
+        while (iterator.hasNext()) {
+            Download download = iterator.next();
+            iterator.remove();
+
+            long completion = download.getAbsoluteCompletion();
+            double rate = rates.computeIfAbsent(download, d -> new Rate(completion, now)).update(completion, now);
+            listener.accept(download, new ProgressSnapshot(completion, download.getSize(), rate, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * @return number of downloads which rates are tracked.
+     */
+    int getTrackedRates() {
+        return rates.size();
+    }
+
+    /**
+     * Smoothed download speed.
+     */
+    private static class Rate {
+        private long lastCompletion;
+        private long lastTime;
+        private double rate;
+
+        private Rate(long completion, long time) {
+            this.lastCompletion = completion;
+            this.lastTime = time;
+        }
+
+        private double update(long completion, long time) {
+            if (time > lastTime) {
+                double current = Math.max(0, completion - lastCompletion) * 1e9 / (time - lastTime);
+                rate = rate == 0 ? current : rate + SMOOTHING * (current - rate);
+                lastCompletion = completion;
+                lastTime = time;
+            }
+            return rate;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package localdomain.localhost.downloader.core;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only sidecar file storing downloaded ranges of a file, so the download can be resumed after restart.
+ *
+ * Journal is a text file with a header of {@code key value} lines followed by {@code from to} lines,
+ * one for each recorded range. Journal only counts downloaded bytes, after each {@link #FLUSH_THRESHOLD} bytes
+ * merged ranges of the download which have changed since previous flush are appended to it.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class ProgressJournal {
+    static final String EXTENSION = ".journal";
+    private static final long FLUSH_THRESHOLD = 8 * 1024 * 1024;
+    private static final int COMPACTION_THRESHOLD = 1024;
+
+    private static final String URL = "url";
+    private static final String SIZE = "size";
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "last-modified";
+
+    private final Path path;
+    private final Download download;
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private Set<MultipartProgress.ProgressPart> written = new HashSet<>();
+    private int rangesWritten;
+
+    private ProgressJournal(Path path, Download download) {
+        this.path = path;
+        this.download = download;
+    }
+
+    /**
+     * @return journal file for specified destination file.
+     */
+    static File journalFile(String filename) {
+        return new File(filename + EXTENSION);
+    }
+
+    /**
+     * @return destination file for specified journal file.
+     */
+    static String targetFilename(File journal) {
+        String path = journal.getAbsolutePath();
+        return path.substring(0, path.length() - EXTENSION.length());
+    }
+
+    /**
+     * Creates new journal for a download, replacing existing one.
+     */
+    static ProgressJournal create(Download download) throws IOException {
+        ProgressJournal journal = new ProgressJournal(journalFile(download.getFilename()).toPath(), download);
+        journal.compact();
+        return journal;
+    }
+
+    /**
+     * Opens existing journal for appending. Ranges already stored in it should be restored by caller.
+     */
+    static ProgressJournal open(Download download, Entry entry) {
+        ProgressJournal journal = new ProgressJournal(journalFile(download.getFilename()).toPath(), download);
+        journal.rangesWritten = entry.getParts().size();
+        journal.written = new HashSet<>(download.getCompletedParts());
+        return journal;
+    }
+
+    /**
+     * Reads journal contents.
+     * @return journal contents or {@code null} if journal is malformed, e.g. has no valid url.
+     */
+    static Entry read(File file) throws IOException {
+        Entry entry = new Entry();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            String[] pair = line.split(" ", 2);
+            if (pair.length != 2) {
+                continue;
+            }
+            try {
+                switch (pair[0]) {
+                    case URL:
+                        // the url is parsed by the restored download, a malformed one makes the journal stale
+                        URI.create(pair[1]);
+                        entry.url = pair[1];
+                        break;
+                    case SIZE:
+                        entry.size = Long.parseLong(pair[1]);
+                        break;
+                    case ETAG:
+                        entry.etag = pair[1];
+                        break;
+                    case LAST_MODIFIED:
+                        entry.lastModified = pair[1];
+                        break;
+                    default:
+                        entry.parts.add(new MultipartProgress.ProgressPart(Long.parseLong(pair[0]), Long.parseLong(pair[1])));
+                }
+            } catch (IllegalArgumentException e) {
+                // probably partially written line (NumberFormatException) or malformed url, ignoring
+            }
+        }
+        return entry.url == null || entry.size <= 0 ? null : entry;
+    }
+
+    /**
+     * Counts downloaded bytes, ranges are written to disk after {@link #FLUSH_THRESHOLD} bytes are downloaded.
+     */
+    void record(long length) throws IOException {
+        if (pendingBytes.addAndGet(length) >= FLUSH_THRESHOLD && pendingBytes.getAndSet(0) >= FLUSH_THRESHOLD) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes ranges of the download which have changed since previous flush to disk.
+     */
+    synchronized void flush() throws IOException {
+        pendingBytes.set(0);
+        if (rangesWritten >= COMPACTION_THRESHOLD) {
+            compact();
+            return;
+        }
+
+        List<MultipartProgress.ProgressPart> parts = download.getCompletedParts();
+        List<MultipartProgress.ProgressPart> changed = new ArrayList<>();
+        for (MultipartProgress.ProgressPart part : parts) {
+            if (!written.contains(part)) {
+                changed.add(part);
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (MultipartProgress.ProgressPart part : changed) {
+                writer.write(part.getFrom() + " " + part.getTo());
+                writer.newLine();
+            }
+        }
+        rangesWritten += changed.size();
+        written = new HashSet<>(parts);
+    }
+
+    /**
+     * Rewrites journal with merged ranges of the download. Journal is append-only otherwise, so it should be
+     * compacted when ranges are removed from progress of the download, e.g. after a part fails verification.
+     */
+    synchronized void compact() throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(URL + ' ' + download.getUrl());
+        lines.add(SIZE + ' ' + download.getSize());
+        if (download.getETag() != null) {
+            lines.add(ETAG + ' ' + download.getETag());
+        }
+        if (download.getLastModified() != null) {
+            lines.add(LAST_MODIFIED + ' ' + download.getLastModified());
+        }
+        List<MultipartProgress.ProgressPart> parts = download.getCompletedParts();
+        for (MultipartProgress.ProgressPart part : parts) {
+            lines.add(part.getFrom() + " " + part.getTo());
+        }
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        rangesWritten = parts.size();
+        written = new HashSet<>(parts);
+    }
+
+    /**
+     * Removes journal file, should be called when download is complete.
+     */
+    synchronized void delete() throws IOException {
+        Files.deleteIfExists(path);
+        written.clear();
+    }
+
+    /**
+     * Journal contents.
+     */
+    static class Entry {
+        private String url;
+        private long size = Download.UNKNOWN_SIZE;
+        private String etag;
+        private String lastModified;
+        private final List<MultipartProgress.ProgressPart> parts = new ArrayList<>();
+
+        String getUrl() {
+            return url;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        String getETag() {
+            return etag;
+        }
+
+        String getLastModified() {
+            return lastModified;
+        }
+
+        List<MultipartProgress.ProgressPart> getParts() {
+            return parts;
+        }
+    }
+}
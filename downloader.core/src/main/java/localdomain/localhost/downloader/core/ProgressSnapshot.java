@@ -0,0 +1,75 @@
+package localdomain.localhost.downloader.core;
+
+/**
+ * Immutable state of {@link Download} progress at some moment.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public class ProgressSnapshot {
+    /**
+     * Magic value for unknown time remaining.
+     */
+    public static final long UNKNOWN_ETA = -1;
+
+    private final long absoluteCompletion;
+    private final long size;
+    private final double rate;
+    private final long timestamp;
+
+    ProgressSnapshot(long absoluteCompletion, long size, double rate, long timestamp) {
+        this.absoluteCompletion = absoluteCompletion;
+        this.size = size;
+        this.rate = rate;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return number of bytes downloaded.
+     */
+    public long getAbsoluteCompletion() {
+        return absoluteCompletion;
+    }
+
+    /**
+     * @return size of the download in bytes or {@link Download#UNKNOWN_SIZE} if unknown.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return relative value of progress on a scale from 0.0 to 1.0. 0.0 is also returned when size is unknown.
+     */
+    public double getCompletion() {
+        return size <= 0 ? 0.0 : absoluteCompletion / (double) size;
+    }
+
+    /**
+     * @return download speed in bytes per second.
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return estimated number of seconds remaining or {@link #UNKNOWN_ETA} if size or speed are unknown.
+     */
+    public long getEta() {
+        if (size <= 0 || rate <= 0) {
+            return UNKNOWN_ETA;
+        }
+        return (long) Math.ceil(Math.max(0, size - absoluteCompletion) / rate);
+    }
+
+    /**
+     * @return time of the snapshot in milliseconds since epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return absoluteCompletion + "/" + size + " at " + Math.round(rate) + " B/s";
+    }
+}
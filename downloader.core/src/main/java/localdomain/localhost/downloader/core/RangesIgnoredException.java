@@ -0,0 +1,13 @@
+package localdomain.localhost.downloader.core;
+
+/**
+ * Thrown when server sends the whole file instead of a requested range while the file wasn't changed,
+ * which means server doesn't support ranges, see {@link Downloader#checkPartial(Download, org.apache.http.HttpResponse)}.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class RangesIgnoredException extends Exception {
+    RangesIgnoredException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,25 @@
+package localdomain.localhost.downloader.core;
+
+/**
+ * Thrown when server asks to repeat the request later, e.g. with {@code 429 Too Many Requests}.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class RetryLaterException extends Exception {
+    private final long delay;
+
+    /**
+     * @param delay delay in milliseconds.
+     */
+    RetryLaterException(String message, long delay) {
+        super(message);
+        this.delay = delay;
+    }
+
+    /**
+     * @return delay in milliseconds.
+     */
+    long getDelay() {
+        return delay;
+    }
+}
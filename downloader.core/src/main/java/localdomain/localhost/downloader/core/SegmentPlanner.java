@@ -0,0 +1,80 @@
+package localdomain.localhost.downloader.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses size of download segments from file size, threads number and measured throughput of a single
+ * connection to the host. Segments are sized to be downloaded in about {@link #TARGET_SEGMENT_SECONDS},
+ * so request and connection setup overhead is amortized on fast links while slow links still get
+ * enough segments to use all threads.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class SegmentPlanner {
+    static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    static final long MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+    /**
+     * Used until throughput of the host is measured.
+     */
+    static final long INITIAL_SEGMENT_SIZE = 16 * 1024 * 1024;
+    static final long TARGET_SEGMENT_SECONDS = 10;
+    /**
+     * Limit for segments of files with unknown size, they're requested speculatively until the end of the file is found.
+     */
+    static final long PROBE_SEGMENT_SIZE = 8 * 1024 * 1024;
+    /**
+     * Segments smaller than this are too short to measure throughput.
+     */
+    private static final long MIN_MEASURED_SIZE = 256 * 1024;
+    private static final double SMOOTHING = 0.3;
+
+    /**
+     * Host to exponentially smoothed throughput of a single connection in bytes per second.
+     */
+    private final Map<String, Double> throughputs = new ConcurrentHashMap<>();
+    /**
+     * Size of all segments if it's set, 0 otherwise.
+     */
+    private volatile long fixedSegmentSize;
+
+    void setFixedSegmentSize(long fixedSegmentSize) {
+        this.fixedSegmentSize = fixedSegmentSize;
+    }
+
+    /**
+     * @return size of segments for a file of {@code size} bytes downloaded from {@code host}.
+     */
+    long getSegmentSize(String host, long size, int threadsNumber) {
+        if (fixedSegmentSize > 0) {
+            return fixedSegmentSize;
+        }
+        Double throughput = throughputs.get(host);
+        long target = throughput == null ? INITIAL_SEGMENT_SIZE : (long) (throughput * TARGET_SEGMENT_SECONDS);
+        if (size == Download.UNKNOWN_SIZE) {
+            return Math.max(MIN_SEGMENT_SIZE, Math.min(PROBE_SEGMENT_SIZE, target));
+        }
+        // there should be at least one segment for each thread
+        long perThread = (size + threadsNumber - 1) / threadsNumber;
+        return Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, Math.min(target, perThread)));
+    }
+
+    /**
+     * Records throughput of a downloaded segment.
+     * @param nanos time spent on the segment including request.
+     */
+    void recordSegment(String host, long bytes, long nanos) {
+        if (bytes < MIN_MEASURED_SIZE || nanos <= 0) {
+            return;
+        }
+        double throughput = bytes * 1e9 / nanos;
+        throughputs.merge(host, throughput, (previous, current) -> previous + SMOOTHING * (current - previous));
+    }
+
+    /**
+     * @return measured throughput of a single connection to the host in bytes per second or 0 if unknown.
+     */
+    double getThroughput(String host) {
+        return throughputs.getOrDefault(host, 0.0);
+    }
+}
@@ -0,0 +1,284 @@
+package localdomain.localhost.downloader.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Digest of a whole file computed while it's downloaded. Digests of separate ranges can't be combined, so
+ * digest is computed in file order: bytes written at the end of the hashed prefix are hashed right from
+ * the transfer buffer, ranges completed ahead of it by other segments are read back from the file when
+ * the prefix reaches them.
+ * <p>
+ * Reading back is extra disk I/O: in the worst case, when parts are completed in reverse order, every part
+ * but the first one is read once more. Ranges are read back soon after they're written, so they're usually
+ * still cached. The writer which moves the prefix reads back at most {@link #READ_BACK_LIMIT} bytes outside
+ * the monitor, so writers at the end of the prefix don't wait for it, their chunks are read back too.
+ * The rest is read back by next writes or by {@link #verify(Download)}.
+ * <p>
+ * Chunks written ahead of the prefix only lower {@link #ahead}, progress of the download is looked up
+ * once the prefix reaches it, so workers don't take the progress lock on every write.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+class StreamingDigest {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Bytes read back by a single write, so the writer isn't stalled by a long range completed ahead.
+     */
+    static final long READ_BACK_LIMIT = 4 * 1024 * 1024;
+
+    private final Checksum expected;
+    private final long readBackLimit;
+    /**
+     * Updated under the monitor, or by the thread reading back while {@link #hashing} is set.
+     */
+    private final MessageDigest digest;
+    private ByteBuffer buffer;
+    /**
+     * End of the hashed prefix of the file, updated like {@link #digest}.
+     */
+    private volatile long position;
+    /**
+     * Lowest offset which may be completed ahead of the prefix, ranges from it are read back when the prefix
+     * reaches it. Progress restored from a journal isn't known yet, so it's looked up by the first update.
+     */
+    private final AtomicLong ahead = new AtomicLong(0);
+    /**
+     * Whether a thread reads ranges back, other writers leave their chunks to it.
+     */
+    private boolean hashing;
+    /**
+     * End of the range being read back, a rewind before it makes the reading thread start over.
+     */
+    private long readEnd;
+    private boolean rewound;
+    private boolean closed;
+    /**
+     * Failure to read the file back, it's reported by {@link #verify(Download)}.
+     */
+    private IOException error;
+
+    StreamingDigest(Checksum expected) {
+        this(expected, READ_BACK_LIMIT);
+    }
+
+    StreamingDigest(Checksum expected, long readBackLimit) {
+        this.expected = expected;
+        this.readBackLimit = readBackLimit;
+        this.digest = expected.newDigest();
+    }
+
+    /**
+     * Accounts bytes written to the file, should be called after progress of the write is added to the download.
+     * @param data written bytes, consumed if they're hashed.
+     */
+    void update(Download download, long offset, ByteBuffer data) {
+        if (offset != position) {
+            lowerAhead(offset);
+            // position is read after ahead is lowered, so either this thread or the one moving the prefix
+            // past the offset reads the range back
+            if (position < ahead.get()) {
+                return;
+            }
+        }
+        synchronized (this) {
+            if (error != null || closed) {
+                return;
+            }
+            if (hashing) {
+                // the reading thread checks ahead before it stops
+                lowerAhead(offset);
+                return;
+            }
+            if (offset == position) {
+                position += data.remaining();
+                digest.update(data);
+            }
+            if (position < ahead.get()) {
+                return;
+            }
+            hashing = true;
+        }
+        readBack(download, readBackLimit);
+    }
+
+    /**
+     * Forgets bytes after the offset, they're going to be downloaded again. Hashing starts over
+     * if some of them are already hashed or are being read back.
+     */
+    synchronized void rewind(long offset) {
+        if (hashing) {
+            rewound |= offset < Math.max(position, readEnd);
+        } else if (position > offset) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        digest.reset();
+        position = 0;
+        ahead.set(0);
+    }
+
+    /**
+     * Hashes completed ranges which follow the hashed prefix, the file is read outside the monitor.
+     * Should be called by the thread which set {@link #hashing}.
+     * @param limit number of bytes to read back, the rest is left to next writes.
+     */
+    private void readBack(Download download, long limit) {
+        FileChannel channel = null;
+        try {
+            do {
+                // chunks written from now on lower it again, earlier ones are found in progress
+                ahead.set(Long.MAX_VALUE);
+                long end = startReading(download);
+                while (position < end && limit > 0) {
+                    if (channel == null) {
+                        channel = FileChannel.open(Paths.get(download.getFilename()), StandardOpenOption.READ);
+                        if (buffer == null) {
+                            buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                        }
+                    }
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), Math.min(end - position, limit)));
+                    int read = channel.read(buffer, position);
+                    if (read <= 0) {
+                        throw new EOFException(download.getFilename() + " is shorter than " + end);
+                    }
+                    buffer.flip();
+                    digest.update(buffer);
+                    limit -= read;
+                    if (!advance(read)) {
+                        break;
+                    }
+                }
+                if (limit <= 0) {
+                    // the next write continues from here
+                    lowerAhead(position);
+                    break;
+                }
+                lowerAhead(download.getCompletedStart(position));
+                // chunks written at the end of the prefix while it was read back left it to this thread
+            } while (!stopReading());
+        } catch (IOException e) {
+            synchronized (this) {
+                error = e;
+            }
+        } finally {
+            synchronized (this) {
+                if (rewound) {
+                    rewound = false;
+                    reset();
+                }
+                hashing = false;
+                notifyAll();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // read only
+                }
+            }
+        }
+    }
+
+    /**
+     * @return end of the range to read back.
+     */
+    private synchronized long startReading(Download download) {
+        // rewinds after progress of the range is looked up see it
+        readEnd = download.getCompletedEnd(position);
+        return readEnd;
+    }
+
+    /**
+     * Moves the prefix past the bytes read back.
+     * @return whether reading should go on, otherwise the digest is closed or starts over.
+     */
+    private synchronized boolean advance(int read) {
+        if (rewound) {
+            rewound = false;
+            reset();
+            return false;
+        }
+        position += read;
+        return !closed;
+    }
+
+    /**
+     * @return whether there's nothing to read back.
+     */
+    private synchronized boolean stopReading() {
+        if (rewound) {
+            rewound = false;
+            reset();
+        }
+        return closed || position < ahead.get();
+    }
+
+    private void lowerAhead(long offset) {
+        long current;
+        while (offset < (current = ahead.get()) && !ahead.compareAndSet(current, offset)) {
+            // lowered concurrently
+        }
+    }
+
+    /**
+     * Hashes the rest of the file and compares the digest with expected one, there's no limit on the number
+     * of bytes read back.
+     */
+    boolean verify(Download download) throws IOException {
+        synchronized (this) {
+            awaitReading();
+            hashing = true;
+        }
+        readBack(download, Long.MAX_VALUE);
+        synchronized (this) {
+            closed = true;
+            if (error != null) {
+                throw error;
+            }
+            return position == download.getSize() && expected.matches(digest.digest());
+        }
+    }
+
+    private void awaitReading() {
+        boolean interrupted = false;
+        while (hashing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // writers read back a bounded number of bytes, so it's not for long
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops hashing, a thread reading back stops after the current chunk.
+     */
+    synchronized void close() {
+        closed = true;
+    }
+
+    /**
+     * @return end of the hashed prefix of the file.
+     */
+    long getPosition() {
+        return position;
+    }
+
+    String getAlgorithm() {
+        return expected.getAlgorithm();
+    }
+}
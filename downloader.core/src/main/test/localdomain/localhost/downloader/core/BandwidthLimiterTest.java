@@ -0,0 +1,44 @@
+package localdomain.localhost.downloader.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public class BandwidthLimiterTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testUnlimited() {
+        BandwidthLimiter limiter = new BandwidthLimiter(BandwidthLimiter.UNLIMITED);
+        assertEquals(0, limiter.reserve(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testBurstThenDebt() {
+        BandwidthLimiter limiter = new BandwidthLimiter(1000);
+        long now = System.nanoTime();
+        // bucket holds 100 ms of transfer
+        assertEquals(0, limiter.reserve(100, now));
+        assertEquals(SECOND, limiter.reserve(1000, now));
+        // next caller waits for the previous one
+        assertEquals(2 * SECOND, limiter.reserve(1000, now));
+        // debt is repaid with time
+        assertEquals(SECOND, limiter.reserve(0, now + SECOND));
+    }
+
+    @Test
+    public void testRateChange() {
+        BandwidthLimiter limiter = new BandwidthLimiter(1000);
+        long now = System.nanoTime();
+        limiter.reserve(100, now);
+        limiter.setRate(BandwidthLimiter.UNLIMITED);
+        assertEquals(0, limiter.reserve(1000000, now));
+        limiter.setRate(10000);
+        assertEquals(0, limiter.reserve(1000, System.nanoTime()));
+    }
+}
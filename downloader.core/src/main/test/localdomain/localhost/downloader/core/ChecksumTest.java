@@ -0,0 +1,61 @@
+package localdomain.localhost.downloader.core;
+
+import org.apache.http.message.BasicHeader;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public class ChecksumTest {
+    private static final byte[] DATA = "Hello, world".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void testStructuredField() throws Exception {
+        String sha256 = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(DATA));
+        Checksum checksum = Checksum.parse(new BasicHeader("Repr-Digest", "md5=:AAAA:, sha-256=:" + sha256 + ":"));
+
+        assertEquals("SHA-256", checksum.getAlgorithm());
+        assertTrue(checksum.matches(checksum.newDigest().digest(DATA)));
+    }
+
+    @Test
+    public void testDigestField() throws Exception {
+        String md5 = Base64.getEncoder().encodeToString(MessageDigest.getInstance("MD5").digest(DATA));
+        Checksum checksum = Checksum.parse(new BasicHeader("Digest", "UNIXsum=30637,MD5=" + md5));
+
+        assertEquals("MD5", checksum.getAlgorithm());
+        assertTrue(checksum.matches(checksum.newDigest().digest(DATA)));
+        assertFalse(checksum.matches(checksum.newDigest().digest(new byte[1])));
+    }
+
+    @Test
+    public void testUnsupported() {
+        assertNull(Checksum.parse(new BasicHeader("Digest", "UNIXsum=30637")));
+        assertNull(Checksum.parse(null));
+    }
+
+    @Test
+    public void testSha256() throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(DATA)) {
+            hex.append(String.format("%02x", b));
+        }
+        Checksum checksum = Checksum.sha256(hex.toString());
+
+        assertTrue(checksum.matches(checksum.newDigest().digest(DATA)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedSha256() {
+        Checksum.sha256("not a digest");
+    }
+}
@@ -0,0 +1,242 @@
+package localdomain.localhost.downloader.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public class DownloadSchedulerTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testHostsAreServedRoundRobin() {
+        DownloadScheduler scheduler = scheduler(4);
+        scheduler.submit(download("http://a.com/1", 64 * MB));
+        scheduler.submit(download("http://a.com/2", 64 * MB));
+        scheduler.submit(download("http://b.com/1", 64 * MB));
+        int generation = scheduler.addWorker();
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals("a.com", scheduler.take(generation).getDownload().getHost());
+            assertEquals("b.com", scheduler.take(generation).getDownload().getHost());
+        }
+    }
+
+    @Test
+    public void testConnectionsPerHost() throws Exception {
+        DownloadScheduler scheduler = scheduler(4);
+        scheduler.setMaxConnectionsPerHost(1);
+        Download a = download("http://a.com/1", 64 * MB);
+        scheduler.submit(a);
+        int generation = scheduler.addWorker();
+
+        DownloadScheduler.Segment first = scheduler.take(generation);
+        assertSame(a, first.getDownload());
+
+        AtomicReference<DownloadScheduler.Segment> second = new AtomicReference<>();
+        Thread worker = new Thread(() -> second.set(scheduler.take(generation)));
+        worker.start();
+        worker.join(200);
+        assertNull("host is busy", second.get());
+
+        scheduler.release(first, 0, 0, false);
+        worker.join(1000);
+        assertNotNull(second.get());
+        assertEquals(first.getTo(), second.get().getFrom());
+    }
+
+    @Test
+    public void testBackoff() {
+        DownloadScheduler scheduler = scheduler(4);
+        scheduler.submit(download("http://a.com/1", 64 * MB));
+        scheduler.submit(download("http://b.com/1", 64 * MB));
+        int generation = scheduler.addWorker();
+
+        DownloadScheduler.Segment segment = scheduler.take(generation);
+        assertEquals("a.com", segment.getDownload().getHost());
+        scheduler.backoff(segment, 1, TimeUnit.HOURS);
+        scheduler.release(segment, segment.getFrom(), segment.getTo(), false);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("b.com", scheduler.take(generation).getDownload().getHost());
+        }
+    }
+
+    @Test
+    public void testHigherPriorityFirst() {
+        DownloadScheduler scheduler = scheduler(4);
+        Download normal = download("http://a.com/1", 64 * MB);
+        Download high = download("http://b.com/1", 64 * MB);
+        high.setPriority(Download.Priority.High);
+        scheduler.submit(normal);
+        scheduler.submit(high);
+        int generation = scheduler.addWorker();
+
+        for (int i = 0; i < 4; i++) {
+            assertSame(high, scheduler.take(generation).getDownload());
+        }
+        assertSame(normal, scheduler.take(generation).getDownload());
+    }
+
+    @Test
+    public void testMaxActiveDownloads() {
+        DownloadScheduler scheduler = scheduler(4);
+        scheduler.setMaxActiveDownloads(1);
+        Download first = download("http://a.com/1", 64 * MB);
+        Download second = download("http://b.com/1", 64 * MB);
+        Download third = download("http://c.com/1", 64 * MB);
+        scheduler.submit(first);
+        scheduler.submit(second);
+        scheduler.submit(third);
+        int generation = scheduler.addWorker();
+
+        assertSame(first, scheduler.take(generation).getDownload());
+        assertSame(first, scheduler.take(generation).getDownload());
+
+        scheduler.moveToFront(third);
+        assertSame(third, scheduler.take(generation).getDownload());
+
+        third.setPriority(Download.Priority.Low);
+        scheduler.reorder();
+        assertSame(first, scheduler.take(generation).getDownload());
+    }
+
+    @Test
+    public void testReleasedRemainderIsScheduledAgain() {
+        DownloadScheduler scheduler = scheduler(1);
+        Download download = download("http://a.com/1", 4 * MB);
+        scheduler.submit(download);
+        int generation = scheduler.addWorker();
+
+        DownloadScheduler.Segment segment = scheduler.take(generation);
+        assertEquals(0, segment.getFrom());
+        assertEquals(4 * MB, segment.getTo());
+        download.addProgress(0, MB);
+        assertNull(scheduler.release(segment, MB, 4 * MB, false));
+
+        segment = scheduler.take(generation);
+        assertEquals(MB, segment.getFrom());
+        assertEquals(4 * MB, segment.getTo());
+        download.addProgress(MB, 3 * MB);
+        assertSame(download, scheduler.release(segment, 4 * MB, 4 * MB, false));
+        assertTrue(Boolean.TRUE.equals(download.isComplete()));
+        assertTrue(scheduler.clear().isEmpty());
+    }
+
+    @Test
+    public void testStaleWorkersStop() {
+        DownloadScheduler scheduler = scheduler(2);
+        scheduler.submit(download("http://a.com/1", 64 * MB));
+        int generation = scheduler.addWorker();
+        scheduler.resetWorkers();
+
+        assertNull(scheduler.take(generation));
+        assertNotNull(scheduler.take(scheduler.addWorker()));
+    }
+
+    @Test
+    public void testSurplusWorkersStop() {
+        DownloadScheduler scheduler = scheduler(2);
+        scheduler.submit(download("http://a.com/1", 64 * MB));
+        int generation = scheduler.addWorker();
+        scheduler.addWorker();
+        DownloadScheduler.Segment segment = scheduler.take(generation);
+        assertFalse(scheduler.tryRetire(segment));
+
+        scheduler.setWorkersNumber(1);
+        assertNull(scheduler.take(generation));
+        assertFalse(scheduler.tryRetire(segment));
+        assertNotNull(scheduler.take(generation));
+        assertEquals(-1, scheduler.addWorker());
+
+        scheduler.setWorkersNumber(3);
+        assertEquals(generation, scheduler.addWorker());
+    }
+
+    @Test
+    public void testOnlySurplusWorkersRetire() {
+        DownloadScheduler scheduler = scheduler(4);
+        Download download = download("http://a.com/1", 64 * MB);
+        scheduler.submit(download);
+        int generation = scheduler.addWorker();
+        for (int i = 1; i < 4; i++) {
+            assertEquals(generation, scheduler.addWorker());
+        }
+        List<DownloadScheduler.Segment> segments = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            segments.add(scheduler.take(generation));
+        }
+        assertEquals(0, scheduler.getQueuedSegments());
+
+        scheduler.setWorkersNumber(2);
+        // every worker checks after its next chunk
+        int retired = 0;
+        for (DownloadScheduler.Segment segment : segments) {
+            if (scheduler.tryRetire(segment)) {
+                retired++;
+                download.addProgress(segment.getFrom(), MB);
+                assertNull(scheduler.release(segment, segment.getFrom() + MB, segment.getTo(), false));
+            }
+        }
+        assertEquals(2, retired);
+        assertEquals(2, scheduler.getQueuedSegments());
+
+        // retired workers are forgotten, the rest keep their segments
+        assertEquals(-1, scheduler.addWorker());
+        scheduler.setWorkersNumber(3);
+        assertEquals(generation, scheduler.addWorker());
+        assertEquals(-1, scheduler.addWorker());
+    }
+
+    @Test
+    public void testRestartedDownloadIsPreparedAgain() throws Exception {
+        DownloadScheduler scheduler = scheduler(4);
+        Download download = download("http://a.com/1", 4 * MB);
+        scheduler.submit(download);
+        int generation = scheduler.addWorker();
+
+        DownloadScheduler.Segment first = scheduler.take(generation);
+        DownloadScheduler.Segment second = scheduler.take(generation);
+        assertEquals(1, scheduler.restart(first));
+        assertEquals(1, scheduler.restart(second));
+        assertNull(scheduler.release(first, first.getFrom(), first.getTo(), false));
+
+        // remaining ranges of the old file aren't scheduled, the download waits for the second segment
+        AtomicReference<DownloadScheduler.Segment> prepare = new AtomicReference<>();
+        Thread worker = new Thread(() -> prepare.set(scheduler.take(generation)));
+        worker.start();
+        worker.join(200);
+        assertNull(prepare.get());
+
+        assertNull(scheduler.release(second, second.getFrom(), second.getTo(), false));
+        worker.join(1000);
+        assertEquals(DownloadScheduler.Segment.Type.Prepare, prepare.get().getType());
+        assertTrue(prepare.get().isRestart());
+    }
+
+    private static DownloadScheduler scheduler(int workersNumber) {
+        DownloadScheduler scheduler = new DownloadScheduler(new SegmentPlanner());
+        scheduler.setWorkersNumber(workersNumber);
+        scheduler.setConcurrency(workersNumber);
+        return scheduler;
+    }
+
+    private static Download download(String url, long size) {
+        Download download = new Download(url);
+        download.setSize(size);
+        download.setState(Download.State.Ready);
+        return download;
+    }
+}
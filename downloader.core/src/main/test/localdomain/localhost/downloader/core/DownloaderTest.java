@@ -8,21 +8,43 @@ import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.conn.HttpHostConnectException;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.protocol.HttpContext;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Matchers;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -31,6 +53,7 @@ import static org.mockito.Mockito.when;
  */
 public class DownloaderTest {
     File tmpDirectory;
+    private final List<Downloader> downloaders = new ArrayList<>();
 
     @Before
     public  void setUp() throws Exception {
@@ -38,6 +61,23 @@ public class DownloaderTest {
         tmpDirectory.deleteOnExit();
     }
 
+    @After
+    public void tearDown() {
+        downloaders.forEach(Downloader::close);
+    }
+
+    private Downloader downloader() {
+        Downloader downloader = new Downloader(tmpDirectory);
+        downloaders.add(downloader);
+        return downloader;
+    }
+
+    private Downloader downloader(HttpClient client) {
+        Downloader downloader = new Downloader(tmpDirectory, client);
+        downloaders.add(downloader);
+        return downloader;
+    }
+
     @Test
     public void test404() throws Exception {
         HttpClient client = mock(HttpClient.class);
@@ -48,7 +88,7 @@ public class DownloaderTest {
         when(response.getStatusLine()).thenReturn(statusLine);
         when(statusLine.getStatusCode()).thenReturn(404);
 
-        Downloader downloader = new Downloader(tmpDirectory, client);
+        Downloader downloader = downloader(client);
         Download download = downloader.createDownload("https://intellij-support.jetbrains.com/requests/21262");
 
         downloader.startAll();
@@ -62,7 +102,7 @@ public class DownloaderTest {
         HttpClient client = mock(HttpClient.class);
         when(client.execute(Matchers.any())).thenThrow(HttpHostConnectException.class);
 
-        Downloader downloader = new Downloader(tmpDirectory, client);
+        Downloader downloader = downloader(client);
         Download download = downloader.createDownload("http://127.0.0.1");
 
         downloader.startAll();
@@ -89,8 +129,13 @@ public class DownloaderTest {
         when(getResponse.getEntity()).thenReturn(entity);
         when(entity.getContent()).thenReturn(new ByteArrayInputStream(content.getBytes()));
         when(statusLine.getStatusCode()).thenReturn(200);
+        StatusLine partialStatusLine = mock(StatusLine.class);
+        when(partialStatusLine.getStatusCode()).thenReturn(206);
+        when(getResponse.getStatusLine()).thenReturn(partialStatusLine);
+        when(getResponse.getFirstHeader("Content-Range")).thenReturn(new BasicHeader("Content-Range",
+                "bytes 0-" + (content.getBytes().length - 1) + "/" + content.getBytes().length));
 
-        Downloader downloader = new Downloader(tmpDirectory, client);
+        Downloader downloader = downloader(client);
         Download download = downloader.createDownload("https://intellij-support.jetbrains.com/requests/21262");
 
         downloader.startAll();
@@ -138,10 +183,15 @@ public class DownloaderTest {
                     if (range != null) {
                         String[] parts = range.getValue().substring("bytes=".length()).split("-");
                         int offset = Integer.parseInt(parts[0]);
-                        int length = Integer.parseInt(parts[1]) - offset;
+                        int length = Integer.parseInt(parts[1]) + 1 - offset;
 
                         HttpResponse getPartResponse = mock(CloseableHttpResponse.class);
                         HttpEntity getPartEntity = mock(HttpEntity.class);
+                        StatusLine partialStatusLine = mock(StatusLine.class);
+                        when(partialStatusLine.getStatusCode()).thenReturn(206);
+                        when(getPartResponse.getStatusLine()).thenReturn(partialStatusLine);
+                        when(getPartResponse.getFirstHeader("Content-Range")).thenReturn(new BasicHeader("Content-Range",
+                                "bytes " + parts[0] + "-" + parts[1] + "/" + data.length));
                         when(getPartResponse.getEntity()).thenReturn(getPartEntity);
                         when(getPartEntity.getContent()).thenReturn(new ByteArrayInputStream(data, offset, length) {
                             @Override
@@ -163,7 +213,7 @@ public class DownloaderTest {
             }
         };
 
-        Downloader downloader = new Downloader(tmpDirectory, client);
+        Downloader downloader = downloader(client);
         Download download = downloader.createDownload("http://random.org/bytes.dat");
 
         downloader.startAll();
@@ -202,10 +252,15 @@ public class DownloaderTest {
                     if (range != null) {
                         String[] parts = range.getValue().substring("bytes=".length()).split("-");
                         int offset = Integer.parseInt(parts[0]);
-                        int length = Integer.parseInt(parts[1]) - offset;
+                        int length = Integer.parseInt(parts[1]) + 1 - offset;
 
                         HttpResponse getPartResponse = mock(CloseableHttpResponse.class);
                         HttpEntity getPartEntity = mock(HttpEntity.class);
+                        StatusLine partialStatusLine = mock(StatusLine.class);
+                        when(partialStatusLine.getStatusCode()).thenReturn(206);
+                        when(getPartResponse.getStatusLine()).thenReturn(partialStatusLine);
+                        when(getPartResponse.getFirstHeader("Content-Range")).thenReturn(new BasicHeader("Content-Range",
+                                "bytes " + parts[0] + "-" + parts[1] + "/" + data.length));
                         when(getPartResponse.getEntity()).thenReturn(getPartEntity);
                         when(getPartEntity.getContent()).thenReturn(new ByteArrayInputStream(data, offset, length));
 
@@ -218,7 +273,7 @@ public class DownloaderTest {
             }
         };
 
-        Downloader downloader = new Downloader(tmpDirectory, client);
+        Downloader downloader = downloader(client);
         Download download = downloader.createDownload("http://random.org/bytes.dat");
 
         downloader.startAll();
@@ -228,4 +283,847 @@ public class DownloaderTest {
         assertArrayEquals(data, FileUtils.readFileToByteArray(new File(tmpDirectory, "bytes.dat")));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testMultipartMapped() throws Exception {
+        byte[] data = new byte[15 * 1024 * 1024];
+        ThreadLocalRandom.current().nextBytes(data);
+
+        Downloader downloader = downloader(rangeClient(data));
+        downloader.setWriteMode(Downloader.WriteMode.Mapped);
+        Download download = downloader.createDownload("http://random.org/bytes.dat");
+
+        downloader.startAll();
+        downloader.waitAll();
+
+        assertEquals(Download.State.Finished, download.getState());
+        assertArrayEquals(data, FileUtils.readFileToByteArray(new File(tmpDirectory, "bytes.dat")));
+    }
+
+    @Test
+    public void testResumeFromJournal() throws Exception {
+        byte[] data = new byte[15 * 1024 * 1024];
+        ThreadLocalRandom.current().nextBytes(data);
+        int half = data.length / 2;
+
+        File file = new File(tmpDirectory, "bytes.dat");
+        byte[] downloaded = new byte[data.length];
+        System.arraycopy(data, 0, downloaded, 0, half);
+        FileUtils.writeByteArrayToFile(file, downloaded);
+        File journal = new File(tmpDirectory, "bytes.dat.journal");
+        FileUtils.writeStringToFile(journal, "url http://random.org/bytes.dat\nsize " + data.length + "\n0 " + half + "\n");
+
+        List<String> ranges = new CopyOnWriteArrayList<>();
+        HttpClient rangeClient = rangeClient(data);
+        HttpClient client = new TestHttpClient() {
+            @Override
+            public HttpResponse execute(HttpUriRequest request) throws IOException {
+                Header range = request.getFirstHeader("Range");
+                if (range != null) {
+                    ranges.add(range.getValue());
+                }
+                return rangeClient.execute(request);
+            }
+        };
+
+        Downloader downloader = downloader(client);
+        List<Download> restored = downloader.restoreDownloads();
+        assertEquals(1, restored.size());
+        assertEquals(half, restored.get(0).getAbsoluteCompletion());
+
+        downloader.startAll();
+        downloader.waitAll();
+
+        assertEquals(Download.State.Finished, restored.get(0).getState());
+        assertFalse(ranges.isEmpty());
+        for (String range : ranges) {
+            assertTrue(range, Long.parseLong(range.substring("bytes=".length()).split("-")[0]) >= half);
+        }
+        assertFalse(journal.exists());
+        assertArrayEquals(data, FileUtils.readFileToByteArray(file));
+    }
+
+    @Test
+    public void testConnectionPoolLimits() throws Exception {
+        Downloader downloader = downloader();
+        downloader.setThreadsNumber(3);
+
+        assertEquals(6, downloader.getConnectionPoolStats().getMax());
+        assertEquals(0, downloader.getConnectionPoolStats().getLeased());
+
+        downloader.waitAll();
+    }
+
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        for (Downloader.ExecutionMode mode : new Downloader.ExecutionMode[] { Downloader.ExecutionMode.Pool, Downloader.ExecutionMode.Async }) {
+            try (TestHttpServer server = new TestHttpServer()) {
+                Downloader downloader = downloader();
+                downloader.setExecutionMode(mode);
+                downloader.setThreadsNumber(3);
+                downloader.setSegmentSize(256 * 1024);
+                Download download = downloader.createDownload(server.add("/reused-" + mode + ".dat", 8 * 1024 * 1024));
+
+                downloader.startAll();
+                downloader.waitAll();
+
+                assertEquals(mode.toString(), Download.State.Finished, download.getState());
+                assertTrue(server.getRangeRequests() >= 32);
+                // every worker keeps its connection for all parts it downloads
+                assertTrue(mode + ": " + server.getConnections() + " connections", server.getConnections() <= 3);
+            }
+        }
+    }
+
+    @Test
+    public void testSlowPartIsSplit() throws Exception {
+        byte[] data = new byte[8 * 1024 * 1024];
+        ThreadLocalRandom.current().nextBytes(data);
+
+        List<String> ranges = new CopyOnWriteArrayList<>();
+        HttpClient rangeClient = rangeClient(data);
+        HttpClient client = new TestHttpClient() {
+            @Override
+            public HttpResponse execute(HttpUriRequest request) throws IOException {
+                Header range = request.getFirstHeader("Range");
+                if (range == null) {
+                    return rangeClient.execute(request);
+                }
+                ranges.add(range.getValue());
+                HttpResponse response = rangeClient.execute(request);
+                if (range.getValue().startsWith("bytes=0-")) {
+                    InputStream content = response.getEntity().getContent();
+                    when(response.getEntity().getContent()).thenReturn(new FilterInputStream(content) {
+                        @Override
+                        public int read(byte[] b) throws IOException {
+                            try {
+                                Thread.sleep(20);
+                            } catch (InterruptedException e) {
+                                throw new InterruptedIOException();
+                            }
+                            return super.read(b);
+                        }
+                    });
+                }
+                return response;
+            }
+        };
+
+        Downloader downloader = downloader(client);
+        downloader.setThreadsNumber(4);
+        Download download = downloader.createDownload("http://random.org/bytes.dat");
+
+        downloader.startAll();
+        downloader.waitAll();
+
+        assertEquals(Download.State.Finished, download.getState());
+        assertTrue(ranges.toString(), ranges.size() > 4);
+        assertArrayEquals(data, FileUtils.readFileToByteArray(new File(tmpDirectory, "bytes.dat")));
+    }
+
+    @Test
+    public void testWithoutHeadRequest() throws Exception {
+        byte[] data = new byte[15 * 1024 * 1024];
+        ThreadLocalRandom.current().nextBytes(data);
+
+        List<String> requests = new CopyOnWriteArrayList<>();
+        HttpClient rangeClient = rangeClient(data);
+        HttpClient client = new TestHttpClient() {
+            @Override
+            public HttpResponse execute(HttpUriRequest request) throws IOException {
+                Header range = request.getFirstHeader("Range");
+                requests.add(request.getMethod() + (range != null ? " " + range.getValue() : ""));
+                return rangeClient.execute(request);
+            }
+        };
+
+        Downloader downloader = downloader(client);
+        downloader.setHeadRequestEnabled(false);
+        Download download = downloader.createDownload("http://random.org/bytes.dat");
+
+        downloader.startAll();
+        downloader.waitAll();
+
+        assertEquals(Download.State.Finished, download.getState());
+        assertEquals(data.length, download.getSize());
+        assertEquals("GET bytes=0-", requests.get(0));
+        assertFalse(requests.toString(), requests.contains("HEAD"));
+        assertArrayEquals(data, FileUtils.readFileToByteArray(new File(tmpDirectory, "bytes.dat")));
+    }
+
+    @Test
+    public void testMaxConnectionsPerHost() throws Exception {
+        byte[] data = new byte[4 * 1024 * 1024];
+        ThreadLocalRandom.current().nextBytes(data);
+
+        Map<String, AtomicInteger> connections = new ConcurrentHashMap<>();
+        Map<String, Integer> maxConnections = new ConcurrentHashMap<>();
+        HttpClient rangeClient = rangeClient(data);
+        HttpClient client = new TestHttpClient() {
+            @Override
+            public HttpResponse execute(HttpUriRequest request) throws IOException {
+                HttpResponse response = rangeClient.execute(request);
+                if (request.getFirstHeader("Range") == null) {
+                    return response;
+                }
+                String host = request.getURI().getHost();
+                AtomicInteger active = connections.computeIfAbsent(host, h -> new AtomicInteger());
+                maxConnections.merge(host, active.incrementAndGet(), Math::max);
+                InputStream content = response.getEntity().getContent();
+                when(response.getEntity().getContent()).thenReturn(new FilterInputStream(content) {
+                    @Override
+                    public int read(byte[] b) throws IOException {
+                        int read = super.read(b);
+                        if (read == -1) {
+                            active.decrementAndGet();
+                        }
+                        return read;
+                    }
+                });
+                return response;
+            }
+        };
+
+        Downloader downloader = downloader(client);
+        downloader.setThreadsNumber(4);
+        downloader.setMaxConnectionsPerHost(1);
+        List<Download> downloads = new ArrayList<>();
+        for (String host : new String[] { "a.com", "b.com" }) {
+            for (int i = 0; i < 2; i++) {
+                downloads.add(downloader.createDownload("http://" + host + "/" + host + i + ".dat"));
+            }
+        }
+
+        downloader.startAll();
+        downloader.waitAll();
+
+        for (Download download : downloads) {
+            assertEquals(Download.State.Finished, download.getState());
+            assertArrayEquals(data, FileUtils.readFileToByteArray(new File(download.getFilename())));
+        }
+        assertEquals(Integer.valueOf(1), maxConnections.get("a.com"));
+        assertEquals(Integer.valueOf(1), maxConnections.get("b.com"));
+    }
+
+    @Test
+    public void testTooManyRequests() throws Exception {
+        byte[] data = new byte[4 * 1024 * 1024];
+        ThreadLocalRandom.current().nextBytes(data);
+
+        AtomicInteger rejected = new AtomicInteger();
+        HttpClient rangeClient = rangeClient(data);
+        HttpClient client = new TestHttpClient() {
+            @Override
+            public HttpResponse execute(HttpUriRequest request) throws IOException {
+                if (request.getFirstHeader("Range") != null && rejected.getAndIncrement() == 0) {
+                    HttpResponse response = mock(CloseableHttpResponse.class);
+                    StatusLine statusLine = mock(StatusLine.class);
+                    when(statusLine.getStatusCode()).thenReturn(429);
+                    when(response.getStatusLine()).thenReturn(statusLine);
+                    when(response.getFirstHeader("Retry-After")).thenReturn(new BasicHeader("Retry-After", "0"));
+                    return response;
+                }
+                return rangeClient.execute(request);
+            }
+        };
+
+        Downloader downloader = downloader(client);
+        Download download = downloader.createDownload("http://random.org/bytes.dat");
+
+        downloader.startAll();
+        downloader.waitAll();
+
+        assertTrue(rejected.get() > 1);
+        assertEquals(Download.State.Finished, download.getState());
+        assertArrayEquals(data, FileUtils.readFileToByteArray(new File(tmpDirectory, "bytes.dat")));
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        assumeTrue(Downloader.ExecutionMode.VirtualThreads.isSupported());
+        byte[] data = new byte[15 * 1024 * 1024];
+        ThreadLocalRandom.current().nextBytes(data);
+
+        Downloader downloader = downloader(rangeClient(data));
+        downloader.setExecutionMode(Downloader.ExecutionMode.VirtualThreads);
+        downloader.setThreadsNumber(64);
+        List<Download> downloads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            downloads.add(downloader.createDownload("http://random.org/bytes" + i + ".dat"));
+        }
+
+        downloader.startAll();
+        downloader.waitAll();
+
+        for (Download download : downloads) {
+            assertEquals(Download.State.Finished, download.getState());
+            assertArrayEquals(data, FileUtils.readFileToByteArray(new File(download.getFilename())));
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        try (TestHttpServer server = new TestHttpServer()) {
+            Downloader downloader = downloader();
+            downloader.setExecutionMode(Downloader.ExecutionMode.Async);
+            downloader.setThreadsNumber(64);
+            Map<Download, byte[]> expected = new ConcurrentHashMap<>();
+            for (int i = 0; i < 200; i++) {
+                byte[] data = new byte[ThreadLocalRandom.current().nextInt(1, 64 * 1024)];
+                ThreadLocalRandom.current().nextBytes(data);
+                expected.put(downloader.createDownload(server.add("/small" + i + ".dat", data)), data);
+            }
+            for (int i = 0; i < 2; i++) {
+                byte[] data = new byte[15 * 1024 * 1024];
+                ThreadLocalRandom.current().nextBytes(data);
+                expected.put(downloader.createDownload(server.add("/large" + i + ".dat", data)), data);
+            }
+
+            downloader.startAll();
+            downloader.waitAll();
+
+            for (Map.Entry<Download, byte[]> entry : expected.entrySet()) {
+                assertEquals(Download.State.Finished, entry.getKey().getState());
+                assertArrayEquals(entry.getValue(), FileUtils.readFileToByteArray(new File(entry.getKey().getFilename())));
+            }
+        }
+    }
+
+    @Test
+    public void testResize() throws Exception {
+        for (Downloader.ExecutionMode mode : new Downloader.ExecutionMode[] { Downloader.ExecutionMode.Pool, Downloader.ExecutionMode.Async }) {
+            try (TestHttpServer server = new TestHttpServer()) {
+                byte[] data = new byte[8 * 1024 * 1024];
+                ThreadLocalRandom.current().nextBytes(data);
+
+                Downloader downloader = downloader();
+                downloader.setExecutionMode(mode);
+                downloader.setThreadsNumber(8);
+                downloader.setBandwidthLimit(8 * 1024 * 1024);
+                Download download = downloader.createDownload(server.add("/resize-" + mode + ".dat", data));
+
+                downloader.startAll();
+                Thread.sleep(300);
+                downloader.setThreadsNumber(2);
+                Thread.sleep(200);
+                downloader.setThreadsNumber(6);
+                downloader.waitAll();
+
+                assertEquals(Download.State.Finished, download.getState());
+                assertArrayEquals(data, FileUtils.readFileToByteArray(new File(download.getFilename())));
+            }
+        }
+    }
+
+    @Test
+    public void testResizeRequeuesOnlySurplusSegments() throws Exception {
+        for (Downloader.ExecutionMode mode : new Downloader.ExecutionMode[] { Downloader.ExecutionMode.Pool, Downloader.ExecutionMode.Async }) {
+            try (TestHttpServer server = new TestHttpServer()) {
+                server.setRate(1024 * 1024);
+                byte[] data = new byte[4 * 1024 * 1024];
+                ThreadLocalRandom.current().nextBytes(data);
+
+                Downloader downloader = downloader();
+                downloader.setExecutionMode(mode);
+                downloader.setThreadsNumber(4);
+                // 4 parts too short to be split by idle workers
+                downloader.setSegmentSize(1024 * 1024);
+                Download download = downloader.createDownload(server.add("/shrink-" + mode + ".dat", data));
+
+                downloader.startAll();
+                for (int i = 0; i < 100 && server.getRangeRequests() < 4; i++) {
+                    Thread.sleep(20);
+                }
+                assertEquals(4, server.getRangeRequests());
+                Thread.sleep(100);
+                downloader.setThreadsNumber(2);
+                downloader.waitAll();
+
+                assertEquals(Download.State.Finished, download.getState());
+                assertArrayEquals(data, FileUtils.readFileToByteArray(new File(download.getFilename())));
+                // only the rests of 2 stopped parts are requested again
+                assertEquals(mode.toString(), 6, server.getRangeRequests());
+            }
+        }
+    }
+
+    @Test
+    public void testExpectedSha256() throws Exception {
+        try (TestHttpServer server = new TestHttpServer()) {
+            byte[] data = new byte[3 * 1024 * 1024];
+            ThreadLocalRandom.current().nextBytes(data);
+            StringBuilder sha256 = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+                sha256.append(String.format("%02x", b));
+            }
+
+            Downloader downloader = downloader();
+            downloader.setThreadsNumber(4);
+            Download valid = downloader.createDownload(server.add("/valid.dat", data));
+            downloader.setExpectedSha256(valid, sha256.toString());
+            Download invalid = downloader.createDownload(server.add("/invalid.dat", data));
+            downloader.setExpectedSha256(invalid, sha256.reverse().toString());
+
+            downloader.startAll();
+            downloader.waitAll();
+
+            assertEquals(Download.State.Finished, valid.getState());
+            assertEquals(Download.State.Error, invalid.getState());
+        }
+    }
+
+    @Test
+    public void testCorruptedPartIsDownloadedAgain() throws Exception {
+        for (Downloader.ExecutionMode mode : new Downloader.ExecutionMode[] { Downloader.ExecutionMode.Pool, Downloader.ExecutionMode.Async }) {
+            try (TestHttpServer server = new TestHttpServer()) {
+                server.setDigests(true);
+                server.corrupt(2);
+
+                Downloader downloader = downloader();
+                downloader.setExecutionMode(mode);
+                downloader.setVerificationEnabled(true);
+                downloader.setThreadsNumber(4);
+                Download download = downloader.createDownload(server.add("/corrupted-" + mode + ".dat", 2 * 1024 * 1024));
+
+                downloader.startAll();
+                downloader.waitAll();
+
+                assertEquals(mode.toString(), Download.State.Finished, download.getState());
+                assertEquals(2, download.getMetrics().getRetries());
+                byte[] content = FileUtils.readFileToByteArray(new File(download.getFilename()));
+                assertEquals(2 * 1024 * 1024, content.length);
+                for (int i = 0; i < content.length; i++) {
+                    assertEquals(TestHttpServer.generated(i), content[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnexpectedPartResponseIsRetried() throws Exception {
+        for (Downloader.ExecutionMode mode : new Downloader.ExecutionMode[] { Downloader.ExecutionMode.Pool, Downloader.ExecutionMode.Async }) {
+            try (TestHttpServer server = new TestHttpServer()) {
+                server.fail(1);
+                server.misplace(1);
+
+                Downloader downloader = downloader();
+                downloader.setExecutionMode(mode);
+                downloader.setThreadsNumber(4);
+                Download download = downloader.createDownload(server.add("/unexpected-" + mode + ".dat", 2 * 1024 * 1024));
+
+                downloader.startAll();
+                downloader.waitAll();
+
+                assertEquals(mode.toString(), Download.State.Finished, download.getState());
+                assertEquals(2, download.getMetrics().getRetries());
+                byte[] content = FileUtils.readFileToByteArray(new File(download.getFilename()));
+                assertEquals(2 * 1024 * 1024, content.length);
+                for (int i = 0; i < content.length; i++) {
+                    assertEquals(TestHttpServer.generated(i), content[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRestoreAfterCorruptedPart() throws Exception {
+        try (TestHttpServer server = new TestHttpServer()) {
+            server.setDigests(true);
+            server.corrupt(1);
+            long size = 16 * 1024 * 1024;
+            String url = server.add("/rewound.dat", size);
+
+            Downloader downloader = downloader();
+            downloader.setVerificationEnabled(true);
+            downloader.setThreadsNumber(1);
+            downloader.setSegmentSize(size);
+            // the corrupted response is flushed to the journal before its digest is checked
+            downloader.setBandwidthLimit(32 * 1024 * 1024);
+            Download download = downloader.createDownload(url);
+            downloader.startAll();
+            while (download.getMetrics().getRetries() == 0) {
+                Thread.sleep(10);
+            }
+            // crash while the part is downloaded again
+            downloader.stopAll();
+            assertEquals(Download.State.Ready, download.getState());
+
+            Downloader restarted = downloader();
+            List<Download> restored = restarted.restoreDownloads();
+            assertEquals(1, restored.size());
+            restarted.startAll();
+            restarted.waitAll();
+
+            assertEquals(Download.State.Finished, restored.get(0).getState());
+            byte[] content = FileUtils.readFileToByteArray(new File(download.getFilename()));
+            assertEquals(size, content.length);
+            for (int i = 0; i < content.length; i++) {
+                assertEquals(TestHttpServer.generated(i), content[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testChangedFileIsDownloadedAgain() throws Exception {
+        for (Downloader.ExecutionMode mode : new Downloader.ExecutionMode[] { Downloader.ExecutionMode.Pool, Downloader.ExecutionMode.Async }) {
+            try (TestHttpServer server = new TestHttpServer()) {
+                server.setRate(1024 * 1024);
+                byte[] data = new byte[4 * 1024 * 1024];
+                ThreadLocalRandom.current().nextBytes(data);
+                byte[] changed = new byte[3 * 1024 * 1024];
+                ThreadLocalRandom.current().nextBytes(changed);
+
+                Downloader downloader = downloader();
+                downloader.setExecutionMode(mode);
+                downloader.setThreadsNumber(4);
+                String path = "/changed-" + mode + ".dat";
+                Download download = downloader.createDownload(server.add(path, data));
+
+                downloader.startAll();
+                Thread.sleep(300);
+                // responses in progress are aborted, so parts are requested again
+                server.add(path, changed);
+                downloader.waitAll();
+
+                assertEquals(Download.State.Finished, download.getState());
+                assertArrayEquals(changed, FileUtils.readFileToByteArray(new File(download.getFilename())));
+            }
+        }
+    }
+
+    @Test
+    public void testPreallocation() throws Exception {
+        for (Downloader.Preallocation preallocation : Downloader.Preallocation.values()) {
+            try (TestHttpServer server = new TestHttpServer()) {
+                byte[] data = new byte[16 * 1024 * 1024 + 123];
+                ThreadLocalRandom.current().nextBytes(data);
+
+                Downloader downloader = downloader();
+                downloader.setPreallocation(preallocation);
+                downloader.setThreadsNumber(8);
+                Download download = downloader.createDownload(server.add("/preallocated-" + preallocation + ".dat", data));
+
+                downloader.startAll();
+                downloader.waitAll();
+
+                assertEquals(Download.State.Finished, download.getState());
+                // allocation never overwrites downloaded bytes
+                assertArrayEquals(data, FileUtils.readFileToByteArray(new File(download.getFilename())));
+            }
+        }
+    }
+
+    @Test
+    public void testNotEnoughSpace() throws Exception {
+        try (TestHttpServer server = new TestHttpServer()) {
+            Downloader downloader = downloader();
+            Download download = downloader.createDownload(server.add("/huge.dat", Long.MAX_VALUE / 2));
+
+            downloader.startAll();
+            downloader.waitAll();
+
+            assertEquals(Download.State.Error, download.getState());
+            assertFalse(new File(download.getFilename()).exists());
+        }
+    }
+
+    @Test
+    public void testNotEnoughSpaceForRestoredDownload() throws Exception {
+        File file = new File(tmpDirectory, "huge.dat");
+        FileUtils.writeByteArrayToFile(file, new byte[1024]);
+        File journal = new File(tmpDirectory, "huge.dat.journal");
+        FileUtils.writeStringToFile(journal, "url http://random.org/huge.dat\nsize " + Long.MAX_VALUE / 2 + "\n0 1024\n");
+
+        Downloader downloader = downloader(mock(HttpClient.class));
+        List<Download> restored = downloader.restoreDownloads();
+
+        assertEquals(1, restored.size());
+        assertEquals(Download.State.Error, restored.get(0).getState());
+        assertEquals(1024, file.length());
+        assertTrue(journal.exists());
+    }
+
+    @Test
+    public void testCloseStopsThreads() throws Exception {
+        Set<Thread> before = new HashSet<>(Thread.getAllStackTraces().keySet());
+        try (TestHttpServer server = new TestHttpServer()) {
+            Downloader downloader = new Downloader(tmpDirectory);
+            downloader.setExecutionMode(Downloader.ExecutionMode.Async);
+            Download download = downloader.createDownload(server.add("/closed.dat", 1024 * 1024));
+            downloader.startAll();
+            downloader.waitAll();
+            assertEquals(Download.State.Finished, download.getState());
+
+            downloader.close();
+        }
+
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            // unnamed threads are of the JVM-wide pool of asynchronous file channels, they're not owned by the downloader
+            if (!before.contains(thread) && !thread.getName().startsWith("Thread-")) {
+                thread.join(5000);
+                assertFalse(thread.getName(), thread.isAlive());
+            }
+        }
+    }
+
+    @Test
+    public void testMalformedUrlInJournal() throws Exception {
+        File malformed = new File(tmpDirectory, "a.dat.journal");
+        FileUtils.writeByteArrayToFile(new File(tmpDirectory, "a.dat"), new byte[1024]);
+        FileUtils.writeStringToFile(malformed, "url http://random.org/a dat|\nsize 2048\n0 1024\n");
+        FileUtils.writeByteArrayToFile(new File(tmpDirectory, "b.dat"), new byte[1024]);
+        FileUtils.writeStringToFile(new File(tmpDirectory, "b.dat.journal"), "url http://random.org/b.dat\nsize 2048\n0 1024\n");
+
+        Downloader downloader = downloader(mock(HttpClient.class));
+        List<Download> restored = downloader.restoreDownloads();
+
+        assertEquals(1, restored.size());
+        assertEquals("http://random.org/b.dat", restored.get(0).getUrl());
+        assertEquals(Download.State.Ready, restored.get(0).getState());
+        assertEquals(restored, downloader.getDownloads());
+        assertFalse(malformed.exists());
+    }
+
+    @Test
+    public void testUnknownSize() throws Exception {
+        for (Downloader.ExecutionMode mode : new Downloader.ExecutionMode[] { Downloader.ExecutionMode.Pool, Downloader.ExecutionMode.Async }) {
+            for (boolean headRequest : new boolean[] { true, false }) {
+                try (TestHttpServer server = new TestHttpServer()) {
+                    server.setLengthHidden(true);
+                    byte[] data = new byte[20 * 1024 * 1024 + 123];
+                    ThreadLocalRandom.current().nextBytes(data);
+
+                    Downloader downloader = downloader();
+                    downloader.setExecutionMode(mode);
+                    downloader.setHeadRequestEnabled(headRequest);
+                    downloader.setThreadsNumber(8);
+                    Download download = downloader.createDownload(server.add("/unknown-" + mode + "-" + headRequest + ".dat", data));
+
+                    downloader.startAll();
+                    downloader.waitAll();
+
+                    // parts are requested speculatively until the end is found
+                    assertEquals(Download.State.Finished, download.getState());
+                    // async engine always prepares files with HEAD
+                    assertEquals(headRequest || mode == Downloader.ExecutionMode.Async ? 1 : 0, server.getHeadRequests());
+                    assertTrue(download.isRangesSupported());
+                    assertEquals(data.length, download.getSize());
+                    assertArrayEquals(data, FileUtils.readFileToByteArray(new File(download.getFilename())));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSequentialDownloadIsResumed() throws Exception {
+        for (Downloader.ExecutionMode mode : new Downloader.ExecutionMode[] { Downloader.ExecutionMode.Pool, Downloader.ExecutionMode.Async }) {
+            try (TestHttpServer server = new TestHttpServer()) {
+                server.setLengthHidden(true);
+                server.setRangesAdvertised(false);
+                // the file can't be downloaded if retries start over
+                server.setCutAfter(300 * 1024);
+                byte[] data = new byte[1024 * 1024 + 123];
+                ThreadLocalRandom.current().nextBytes(data);
+
+                Downloader downloader = downloader();
+                downloader.setExecutionMode(mode);
+                Download download = downloader.createDownload(server.add("/sequential-" + mode + ".dat", data));
+
+                downloader.startAll();
+                downloader.waitAll();
+
+                assertEquals(Download.State.Finished, download.getState());
+                assertFalse(download.isRangesSupported());
+                assertEquals(data.length, download.getSize());
+                assertArrayEquals(data, FileUtils.readFileToByteArray(new File(download.getFilename())));
+            }
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        for (Downloader.ExecutionMode mode : new Downloader.ExecutionMode[] { Downloader.ExecutionMode.Pool, Downloader.ExecutionMode.Async }) {
+            try (TestHttpServer server = new TestHttpServer()) {
+                byte[] data = new byte[4 * 1024 * 1024 + 123];
+                ThreadLocalRandom.current().nextBytes(data);
+
+                Downloader downloader = downloader();
+                downloader.setExecutionMode(mode);
+                downloader.setThreadsNumber(4);
+                downloader.setSegmentSize(1024 * 1024);
+                downloader.setForceOnFinish(true);
+                AtomicLong recorded = new AtomicLong();
+                downloader.getMetrics().setRecorder(new MetricsRecorder() {
+                    @Override
+                    public void bytesReceived(Download download, int bytes) {
+                        recorded.addAndGet(bytes);
+                    }
+                });
+                downloader.registerMBeans("test-" + mode);
+                Download download = downloader.createDownload(server.add("/metrics-" + mode + ".dat", data));
+
+                downloader.startAll();
+                downloader.waitAll();
+
+                assertEquals(Download.State.Finished, download.getState());
+                DownloadMetrics metrics = download.getMetrics();
+                assertEquals(data.length, metrics.getBytesReceived());
+                assertEquals(data.length, downloader.getMetrics().getBytesReceived());
+                assertEquals(data.length, recorded.get());
+                assertEquals(0, metrics.getActiveSegments());
+                assertTrue(metrics.getSegmentsFinished() >= 4);
+                // HEAD request and a request per segment
+                assertTrue(metrics.getTimeToFirstByte().getCount() > metrics.getSegmentsFinished());
+                assertEquals(1, metrics.getSyncs());
+                assertEquals(data.length, metrics.getBytesPerSync().getMax());
+
+                MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName("localdomain.localhost.downloader:type=Downloader,name=\"test-" + mode + "\"");
+                assertEquals((long) data.length, mbeans.getAttribute(name, "BytesReceived"));
+                assertEquals(0, mbeans.getAttribute(name, "ActiveSegments"));
+                // MBeans of downloads are unregistered once they're finished
+                assertTrue(mbeans.queryNames(new ObjectName("localdomain.localhost.downloader:type=Download,*"), null).isEmpty());
+                downloader.unregisterMBeans();
+                assertFalse(mbeans.isRegistered(name));
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncCallbacksDontRunOnIoThreads() throws Exception {
+        try (TestHttpServer server = new TestHttpServer()) {
+            byte[] data = new byte[2 * 1024 * 1024 + 123];
+            ThreadLocalRandom.current().nextBytes(data);
+
+            Downloader downloader = downloader();
+            downloader.setExecutionMode(Downloader.ExecutionMode.Async);
+            downloader.setForceOnFinish(true);
+            List<String> threads = new CopyOnWriteArrayList<>();
+            downloader.setHandler(new DownloaderEventHandler() {
+                @Override
+                public void downloadStateChanged(Download download) {
+                    threads.add(download.getState() + " " + Thread.currentThread().getName());
+                }
+            });
+            Download download = downloader.createDownload(server.add("/callbacks.dat", data));
+
+            downloader.startAll();
+            downloader.waitAll();
+
+            assertEquals(Download.State.Finished, download.getState());
+            // files are created, synced and verified by the pool, so I/O of other downloads isn't stalled
+            assertEquals(2, threads.size());
+            for (String thread : threads) {
+                assertTrue(thread, thread.contains("downloader-async-completion"));
+            }
+        }
+    }
+
+    @Test
+    public void testRangesIgnored() throws Exception {
+        for (Downloader.ExecutionMode mode : new Downloader.ExecutionMode[] { Downloader.ExecutionMode.Pool, Downloader.ExecutionMode.Async }) {
+            try (TestHttpServer server = new TestHttpServer()) {
+                server.setRangesDisabled(true);
+                byte[] data = new byte[3 * 1024 * 1024 + 123];
+                ThreadLocalRandom.current().nextBytes(data);
+
+                Downloader downloader = downloader();
+                downloader.setExecutionMode(mode);
+                downloader.setThreadsNumber(4);
+                downloader.setSegmentSize(512 * 1024);
+                Download download = downloader.createDownload(server.add("/ignored-" + mode + ".dat", data));
+
+                downloader.startAll();
+                downloader.waitAll();
+
+                // parts get the whole file, so the rest of it is downloaded sequentially instead of restarting
+                assertEquals(Download.State.Finished, download.getState());
+                assertFalse(download.isRangesSupported());
+                assertArrayEquals(data, FileUtils.readFileToByteArray(new File(download.getFilename())));
+            }
+        }
+    }
+
+    @Test
+    public void testIsChanged() {
+        Download download = new Download("http://random.org/bytes.dat");
+        HttpResponse response = mock(HttpResponse.class);
+        // range wasn't conditional
+        assertFalse(Downloader.isChanged(download, response));
+
+        download.setETag("\"v1\"");
+        assertTrue(Downloader.isChanged(download, response));
+        when(response.getFirstHeader("ETag")).thenReturn(new BasicHeader("ETag", "\"v1\""));
+        assertFalse(Downloader.isChanged(download, response));
+        when(response.getFirstHeader("ETag")).thenReturn(new BasicHeader("ETag", "\"v2\""));
+        assertTrue(Downloader.isChanged(download, response));
+
+        download.setETag(null);
+        download.setLastModified("Wed, 21 Oct 2015 07:28:00 GMT");
+        when(response.getFirstHeader("Last-Modified")).thenReturn(new BasicHeader("Last-Modified", "Wed, 21 Oct 2015 07:28:00 GMT"));
+        assertFalse(Downloader.isChanged(download, response));
+    }
+
+    @Test
+    public void testGetRetryAfter() {
+        HttpResponse response = mock(HttpResponse.class);
+        when(response.getFirstHeader("Retry-After")).thenReturn(new BasicHeader("Retry-After", "120"));
+        assertEquals(120000, Downloader.getRetryAfter(response));
+
+        when(response.getFirstHeader("Retry-After")).thenReturn(new BasicHeader("Retry-After",
+                DateUtils.formatDate(new Date(System.currentTimeMillis() + 60000))));
+        long delay = Downloader.getRetryAfter(response);
+        assertTrue(String.valueOf(delay), delay > 55000 && delay <= 60000);
+
+        when(response.getFirstHeader("Retry-After")).thenReturn(null);
+        assertEquals(5000, Downloader.getRetryAfter(response));
+    }
+
+    @Test
+    public void testParseContentRangeSize() {
+        assertEquals(146515, Downloader.parseContentRangeSize("bytes 0-1023/146515"));
+        assertEquals(Download.UNKNOWN_SIZE, Downloader.parseContentRangeSize("bytes 0-1023/*"));
+        assertEquals(1024, Downloader.parseContentRangeEnd("bytes 0-1023/*"));
+        assertEquals(Download.UNKNOWN_SIZE, Downloader.parseContentRangeEnd("bytes */146515"));
+    }
+
+    /**
+     * @return client answering HEAD with size of {@code data} and ranged GET with corresponding slices of it.
+     */
+    static HttpClient rangeClient(byte[] data) throws IOException {
+        HttpResponse headResponse = mock(HttpResponse.class);
+        StatusLine statusLine = mock(StatusLine.class);
+
+        when(headResponse.getStatusLine()).thenReturn(statusLine);
+        when(headResponse.getFirstHeader("Content-Length"))
+                .thenReturn(new BasicHeader("Content-Length", String.valueOf(data.length)));
+        when(statusLine.getStatusCode()).thenReturn(200);
+
+        return new TestHttpClient() {
+            @Override
+            public HttpResponse execute(HttpUriRequest request) throws IOException {
+                if (request.getMethod().equals("HEAD")) {
+                    return headResponse;
+                }
+                Header range = request.getFirstHeader("Range");
+                if (request.getMethod().equals("GET") && range != null) {
+                    String[] parts = range.getValue().substring("bytes=".length()).split("-");
+                    int offset = Integer.parseInt(parts[0]);
+                    int length = (parts.length > 1 ? Integer.parseInt(parts[1]) + 1 : data.length) - offset;
+
+                    HttpResponse getPartResponse = mock(CloseableHttpResponse.class);
+                    HttpEntity getPartEntity = mock(HttpEntity.class);
+                    StatusLine partialStatusLine = mock(StatusLine.class);
+                    when(partialStatusLine.getStatusCode()).thenReturn(206);
+                    when(getPartResponse.getStatusLine()).thenReturn(partialStatusLine);
+                    when(getPartResponse.getFirstHeader("Content-Range")).thenReturn(new BasicHeader("Content-Range",
+                            "bytes " + offset + "-" + (offset + length - 1) + "/" + data.length));
+                    when(getPartResponse.getEntity()).thenReturn(getPartEntity);
+                    when(getPartEntity.getContent()).thenReturn(new ByteArrayInputStream(data, offset, length));
+
+                    return getPartResponse;
+                }
+                return super.execute(request);
+            }
+        };
+    }
+}
@@ -0,0 +1,53 @@
+package localdomain.localhost.downloader.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public class HistogramTest {
+    @Test
+    public void testEmpty() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0.0, histogram.getMean(), 0.0);
+        assertEquals(0, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void testSummary() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50.5, histogram.getMean(), 0.0);
+    }
+
+    @Test
+    public void testPercentileIsUpperBoundOfBucket() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(1_000_000);
+        // 1000 has 10 significant bits
+        assertEquals(1023, histogram.getPercentile(0.5));
+        assertEquals(1023, histogram.getPercentile(0.99));
+        // bound of the last bucket is clamped to the maximum
+        assertEquals(1_000_000, histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void testNegativeValuesAreZeros() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(1.0));
+    }
+}
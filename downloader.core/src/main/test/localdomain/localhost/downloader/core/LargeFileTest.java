@@ -0,0 +1,133 @@
+package localdomain.localhost.downloader.core;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads of files larger than 4 GB. Files are sparse and only ranges around 2 GB and 4 GB boundaries
+ * are missing from their journals, so only a few megabytes are downloaded and written.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public class LargeFileTest {
+    private static final long MB = 1024 * 1024;
+    private static final long GB = 1024 * MB;
+    private static final long SIZE = 5 * GB + 123;
+    private static final List<MultipartProgress.ProgressPart> MISSING = Arrays.asList(
+            new MultipartProgress.ProgressPart(2 * GB - MB, 2 * GB + MB),
+            new MultipartProgress.ProgressPart(4 * GB - MB, 4 * GB + MB),
+            new MultipartProgress.ProgressPart(SIZE - MB, SIZE)
+    );
+
+    private File tmpDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDirectory = Files.createTempDirectory("downloads").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(tmpDirectory);
+    }
+
+    @Test
+    public void testHeadRequest() throws Exception {
+        Downloader downloader = new Downloader(tmpDirectory);
+        download(downloader);
+    }
+
+    @Test
+    public void testWithoutHeadRequest() throws Exception {
+        Downloader downloader = new Downloader(tmpDirectory);
+        downloader.setHeadRequestEnabled(false);
+        download(downloader);
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        Downloader downloader = new Downloader(tmpDirectory);
+        downloader.setExecutionMode(Downloader.ExecutionMode.Async);
+        download(downloader);
+    }
+
+    @Test
+    public void testMappedStorage() throws Exception {
+        Downloader downloader = new Downloader(tmpDirectory);
+        downloader.setWriteMode(Downloader.WriteMode.Mapped);
+        download(downloader);
+    }
+
+    @Test
+    public void testProgress() {
+        MultipartProgress progress = new MultipartProgress(SIZE);
+        progress.addProgress(0, 3 * GB);
+        progress.addProgress(3 * GB, 2 * GB);
+
+        assertEquals(5 * GB, progress.getAbsoluteProgress());
+        assertEquals(Arrays.asList(new MultipartProgress.ProgressPart(5 * GB, SIZE)), progress.getMissingParts());
+        assertEquals(5 * GB, progress.getCompletedEnd(4 * GB));
+    }
+
+    @Test
+    public void testParseContentRangeSize() {
+        assertEquals(SIZE, Downloader.parseContentRangeSize("bytes 0-0/" + SIZE));
+    }
+
+    private void download(Downloader downloader) throws Exception {
+        try (TestHttpServer server = new TestHttpServer()) {
+            String url = server.add("/large.dat", SIZE);
+            File file = new File(tmpDirectory, "large.dat");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                // sparse, so it doesn't take disk space
+                raf.setLength(SIZE);
+            }
+            StringBuilder journal = new StringBuilder()
+                    .append("url ").append(url).append('\n')
+                    .append("size ").append(SIZE).append('\n')
+                    .append("etag ").append(server.getETag("/large.dat")).append('\n');
+            long from = 0;
+            for (MultipartProgress.ProgressPart missing : MISSING) {
+                journal.append(from).append(' ').append(missing.getFrom()).append('\n');
+                from = missing.getTo();
+            }
+            FileUtils.writeStringToFile(ProgressJournal.journalFile(file.getAbsolutePath()), journal.toString());
+
+            downloader.setThreadsNumber(4);
+            Download download = downloader.createDownload(url);
+            downloader.startAll();
+            downloader.waitAll();
+
+            assertEquals(Download.State.Finished, download.getState());
+            assertEquals(SIZE, download.getSize());
+            assertEquals(SIZE, download.getAbsoluteCompletion());
+            assertTrue(download.isComplete());
+            assertEquals(SIZE, file.length());
+            assertFalse(ProgressJournal.journalFile(file.getAbsolutePath()).exists());
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                for (MultipartProgress.ProgressPart missing : MISSING) {
+                    byte[] content = new byte[(int) (missing.getTo() - missing.getFrom())];
+                    raf.seek(missing.getFrom());
+                    raf.readFully(content);
+                    for (int i = 0; i < content.length; i++) {
+                        assertEquals(TestHttpServer.generated(missing.getFrom() + i), content[i]);
+                    }
+                }
+            }
+        } finally {
+            downloader.close();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package localdomain.localhost.downloader.core;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public class MappedStorageTest {
+    @Test
+    public void testWriteAcrossWindows() throws Exception {
+        File file = Files.createTempFile("mapped", ".dat").toFile();
+        file.deleteOnExit();
+        byte[] data = new byte[10000];
+        ThreadLocalRandom.current().nextBytes(data);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(data.length);
+        }
+
+        MappedStorage storage = new MappedStorage(file.getAbsolutePath(), data.length, 4096);
+        // second chunk spans three windows
+        storage.write(0, ByteBuffer.wrap(data, 0, 1000));
+        storage.write(1000, ByteBuffer.wrap(data, 1000, data.length - 1000));
+        storage.close(true);
+
+        assertArrayEquals(data, FileUtils.readFileToByteArray(file));
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        File file = Files.createTempFile("mapped", ".dat").toFile();
+        file.deleteOnExit();
+        byte[] data = new byte[64 * 1024];
+        ThreadLocalRandom.current().nextBytes(data);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(data.length);
+        }
+
+        MappedStorage storage = new MappedStorage(file.getAbsolutePath(), data.length, 4096);
+        // parts interleave, so every window is mapped by several of them at once
+        int parts = 8;
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for (int part = 0; part < parts; part++) {
+            int first = part;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int offset = first * 512; offset < data.length; offset += parts * 512) {
+                        storage.write(offset, ByteBuffer.wrap(data, offset, 512));
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        storage.close(true);
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertArrayEquals(data, FileUtils.readFileToByteArray(file));
+    }
+}
@@ -2,7 +2,12 @@ package localdomain.localhost.downloader.core;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import static org.junit.Assert.*;
 
@@ -84,4 +89,178 @@ public class MultipartProgressTest {
                 new MultipartProgress.ProgressPart(0, 50)
         ), progress.getMissingParts());
     }
+
+    @Test
+    public void testBridging() {
+        MultipartProgress progress = new MultipartProgress(200);
+        progress.addProgress(0, 20);
+        progress.addProgress(40, 20);
+        progress.addProgress(80, 20);
+        progress.addProgress(10, 80);
+
+        assertEquals(Arrays.asList(
+                new MultipartProgress.ProgressPart(0, 100)
+        ), progress.getCompletedParts());
+        assertEquals(100, progress.getAbsoluteProgress());
+    }
+
+    @Test
+    public void testRandomAgainstBitSet() {
+        Random random = new Random(42);
+        int size = 10000;
+        MultipartProgress progress = new MultipartProgress(size);
+        BitSet expected = new BitSet(size);
+
+        while (expected.cardinality() < size) {
+            int offset = random.nextInt(size);
+            int length = Math.min(random.nextInt(200), size - offset);
+            progress.addProgress(offset, length);
+            expected.set(offset, offset + length);
+
+            assertEquals(expected.cardinality(), progress.getAbsoluteProgress());
+        }
+        assertTrue(progress.isComplete());
+    }
+
+    @Test
+    public void testCursors() {
+        MultipartProgress progress = new MultipartProgress(200);
+        MultipartProgress.Cursor first = progress.openCursor(0, 100);
+        MultipartProgress.Cursor second = progress.openCursor(100, 200);
+        first.advance(50);
+        second.advance(30);
+        assertEquals(80, progress.getAbsoluteProgress());
+
+        assertEquals(Arrays.asList(
+                new MultipartProgress.ProgressPart(50, 100),
+                new MultipartProgress.ProgressPart(130, 200)
+        ), progress.getMissingParts());
+
+        first.advance(50);
+        second.advance(70);
+        assertEquals(200, progress.getAbsoluteProgress());
+        progress.closeCursor(first);
+        assertTrue(progress.isComplete());
+        progress.closeCursor(second);
+        assertEquals(200, progress.getAbsoluteProgress());
+    }
+
+    @Test
+    public void testSplitLargest() {
+        MultipartProgress progress = new MultipartProgress(200);
+        MultipartProgress.Cursor small = progress.openCursor(0, 50);
+        MultipartProgress.Cursor large = progress.openCursor(50, 200);
+        large.advance(10);
+
+        assertEquals(new MultipartProgress.ProgressPart(130, 200), progress.splitLargest(10));
+        assertEquals(130, large.getEnd());
+        assertEquals(50, small.getEnd());
+
+        assertEquals(new MultipartProgress.ProgressPart(95, 130), progress.splitLargest(10));
+        assertEquals(new MultipartProgress.ProgressPart(25, 50), progress.splitLargest(10));
+        assertNull(progress.splitLargest(20));
+    }
+
+    @Test
+    public void testMissingPartsFromStart() {
+        MultipartProgress progress = new MultipartProgress(200);
+        progress.addProgress(0, 50);
+
+        assertEquals(Arrays.asList(
+                new MultipartProgress.ProgressPart(50, 200)
+        ), progress.getMissingParts());
+    }
+
+    @Test
+    public void testRewind() {
+        MultipartProgress progress = new MultipartProgress(200);
+        progress.addProgress(0, 50);
+        MultipartProgress.Cursor cursor = progress.openCursor(50, 150);
+        cursor.advance(60);
+        // merges cursor progress into parts
+        assertEquals(110, progress.getCompletedEnd(0));
+
+        progress.rewind(cursor, 70);
+        assertEquals(70, progress.getAbsoluteProgress());
+        assertEquals(70, progress.getCompletedEnd(0));
+        assertEquals(70, cursor.getPosition());
+
+        cursor.advance(80);
+        progress.closeCursor(cursor);
+        assertEquals(Arrays.asList(
+                new MultipartProgress.ProgressPart(0, 150)
+        ), progress.getCompletedParts());
+        assertEquals(150, progress.getAbsoluteProgress());
+    }
+
+    @Test
+    public void testWriteFree() throws Exception {
+        MultipartProgress progress = new MultipartProgress(100);
+        progress.addProgress(10, 10);
+        MultipartProgress.Cursor cursor = progress.openCursor(50, 80);
+        cursor.advance(5);
+
+        List<MultipartProgress.ProgressPart> free = new ArrayList<>();
+        progress.writeFree(0, 100, (from, to) -> free.add(new MultipartProgress.ProgressPart(from, to)));
+        assertEquals(Arrays.asList(
+                new MultipartProgress.ProgressPart(0, 10),
+                new MultipartProgress.ProgressPart(20, 50),
+                new MultipartProgress.ProgressPart(80, 100)
+        ), free);
+
+        free.clear();
+        progress.writeFree(15, 60, (from, to) -> free.add(new MultipartProgress.ProgressPart(from, to)));
+        assertEquals(Arrays.asList(new MultipartProgress.ProgressPart(20, 50)), free);
+    }
+
+    @Test
+    public void testGetCompletedStart() {
+        MultipartProgress progress = new MultipartProgress(100);
+        progress.addProgress(10, 10);
+        progress.addProgress(50, 10);
+        assertEquals(10, progress.getCompletedStart(0));
+        assertEquals(15, progress.getCompletedStart(15));
+        assertEquals(50, progress.getCompletedStart(20));
+        assertEquals(Long.MAX_VALUE, progress.getCompletedStart(60));
+    }
+
+    @Test
+    public void testWriteFreeWhileCursorsAdvance() throws Exception {
+        int cursorsNumber = 8;
+        int partSize = 200_000;
+        MultipartProgress progress = new MultipartProgress(cursorsNumber * partSize);
+        AtomicIntegerArray written = new AtomicIntegerArray(cursorsNumber * partSize);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < cursorsNumber; i++) {
+            MultipartProgress.Cursor cursor = progress.openCursor(i * partSize, (i + 1) * partSize);
+            Thread worker = new Thread(() -> {
+                while (cursor.getPosition() < cursor.getEnd()) {
+                    int length = (int) Math.min(16, cursor.getEnd() - cursor.getPosition());
+                    // bytes are written before the cursor is advanced, like workers do
+                    for (long offset = cursor.getPosition(); offset < cursor.getPosition() + length; offset++) {
+                        written.set((int) offset, 1);
+                    }
+                    cursor.advance(length);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        List<String> overwritten = new ArrayList<>();
+        while (workers.stream().anyMatch(Thread::isAlive)) {
+            progress.writeFree(0, progress.getSize(), (from, to) -> {
+                for (long offset = from; offset < to; offset++) {
+                    if (written.get((int) offset) != 0) {
+                        overwritten.add("[" + from + ", " + to + ")");
+                        return;
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(Arrays.asList(), overwritten);
+    }
 }
@@ -0,0 +1,71 @@
+package localdomain.localhost.downloader.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public class ProgressDispatcherTest {
+    @Test
+    public void testCoalescing() {
+        List<ProgressSnapshot> snapshots = new ArrayList<>();
+        ProgressDispatcher dispatcher = new ProgressDispatcher((download, snapshot) -> snapshots.add(snapshot), 1);
+
+        Download download = new Download("http://random.org/bytes.dat");
+        download.setSize(1000);
+        for (int i = 0; i < 100; i++) {
+            download.addProgress(i * 10, 10);
+            dispatcher.progressChanged(download);
+        }
+        dispatcher.tick();
+        dispatcher.tick();
+
+        assertEquals(1, snapshots.size());
+        assertEquals(1000, snapshots.get(0).getAbsoluteCompletion());
+        assertEquals(1.0, snapshots.get(0).getCompletion(), 0.01);
+    }
+
+    @Test
+    public void testRateForgottenOnLastFlush() throws Exception {
+        List<ProgressSnapshot> snapshots = new CopyOnWriteArrayList<>();
+        ProgressDispatcher dispatcher = new ProgressDispatcher((download, snapshot) -> snapshots.add(snapshot), 1);
+
+        Download download = new Download("http://random.org/bytes.dat");
+        download.setSize(1000);
+        download.addProgress(0, 500);
+        dispatcher.progressChanged(download);
+        dispatcher.tick();
+        assertEquals(1, dispatcher.getTrackedRates());
+
+        download.addProgress(500, 500);
+        dispatcher.progressChanged(download);
+        dispatcher.flush(download, false);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (snapshots.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, snapshots.size());
+        assertEquals(1, dispatcher.getTrackedRates());
+
+        dispatcher.flush(download, true);
+        while (dispatcher.getTrackedRates() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, dispatcher.getTrackedRates());
+        assertEquals(1000, snapshots.get(1).getAbsoluteCompletion());
+    }
+
+    @Test
+    public void testEta() {
+        ProgressSnapshot snapshot = new ProgressSnapshot(250, 1000, 100.0, 0);
+        assertEquals(8, snapshot.getEta());
+        assertEquals(ProgressSnapshot.UNKNOWN_ETA, new ProgressSnapshot(250, Download.UNKNOWN_SIZE, 100.0, 0).getEta());
+        assertEquals(ProgressSnapshot.UNKNOWN_ETA, new ProgressSnapshot(250, 1000, 0.0, 0).getEta());
+    }
+}
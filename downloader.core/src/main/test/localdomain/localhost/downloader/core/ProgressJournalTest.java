@@ -0,0 +1,49 @@
+package localdomain.localhost.downloader.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public class ProgressJournalTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        File directory = Files.createTempDirectory("journal").toFile();
+        directory.deleteOnExit();
+
+        Download download = new Download("http://random.org/bytes.dat");
+        download.setFilename(new File(directory, "bytes.dat").getAbsolutePath());
+        download.setSize(200);
+        download.setETag("\"abc\"");
+
+        ProgressJournal journal = ProgressJournal.create(download);
+        download.addProgress(0, 50);
+        journal.record(50);
+        download.addProgress(150, 50);
+        journal.record(50);
+        journal.flush();
+
+        File file = ProgressJournal.journalFile(download.getFilename());
+        ProgressJournal.Entry entry = ProgressJournal.read(file);
+        assertEquals("http://random.org/bytes.dat", entry.getUrl());
+        assertEquals(200, entry.getSize());
+        assertEquals("\"abc\"", entry.getETag());
+        assertNull(entry.getLastModified());
+        assertEquals(Arrays.asList(
+                new MultipartProgress.ProgressPart(0, 50),
+                new MultipartProgress.ProgressPart(150, 200)
+        ), entry.getParts());
+        assertEquals(download.getFilename(), ProgressJournal.targetFilename(file));
+
+        journal.delete();
+        assertFalse(file.exists());
+    }
+}
@@ -0,0 +1,59 @@
+package localdomain.localhost.downloader.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public class SegmentPlannerTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testSmallFileUsesAllThreads() {
+        SegmentPlanner planner = new SegmentPlanner();
+        assertEquals(2 * MB, planner.getSegmentSize("host", 16 * MB, 8));
+    }
+
+    @Test
+    public void testTinyFile() {
+        SegmentPlanner planner = new SegmentPlanner();
+        assertEquals(SegmentPlanner.MIN_SEGMENT_SIZE, planner.getSegmentSize("host", 100, 8));
+    }
+
+    @Test
+    public void testUnmeasuredHost() {
+        SegmentPlanner planner = new SegmentPlanner();
+        assertEquals(SegmentPlanner.INITIAL_SEGMENT_SIZE, planner.getSegmentSize("host", 5000 * MB, 8));
+    }
+
+    @Test
+    public void testFastLinkGrowsSegments() {
+        SegmentPlanner planner = new SegmentPlanner();
+        // 10 MB/s
+        planner.recordSegment("host", 10 * MB, TimeUnit.SECONDS.toNanos(1));
+        assertEquals(100 * MB, planner.getSegmentSize("host", 5000 * MB, 8));
+        assertEquals(SegmentPlanner.INITIAL_SEGMENT_SIZE, planner.getSegmentSize("other", 5000 * MB, 8));
+    }
+
+    @Test
+    public void testSlowLinkShrinksSegments() {
+        SegmentPlanner planner = new SegmentPlanner();
+        // 256 KB/s
+        planner.recordSegment("host", MB, TimeUnit.SECONDS.toNanos(4));
+        assertEquals(SegmentPlanner.MIN_SEGMENT_SIZE * 5 / 2, planner.getSegmentSize("host", 5000 * MB, 8));
+    }
+
+    @Test
+    public void testFixedSegmentSize() {
+        SegmentPlanner planner = new SegmentPlanner();
+        planner.recordSegment("host", 10 * MB, TimeUnit.SECONDS.toNanos(1));
+        planner.setFixedSegmentSize(4 * MB);
+        assertEquals(4 * MB, planner.getSegmentSize("host", 5000 * MB, 8));
+        planner.setFixedSegmentSize(0);
+        assertEquals(100 * MB, planner.getSegmentSize("host", 5000 * MB, 8));
+    }
+}
@@ -0,0 +1,104 @@
+package localdomain.localhost.downloader.core;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public class StreamingDigestTest {
+    private static final int CHUNK_SIZE = 4096;
+
+    @Test
+    public void testChunksWrittenConcurrentlyInAnyOrder() throws Exception {
+        byte[] data = new byte[256 * CHUNK_SIZE + 123];
+        ThreadLocalRandom.current().nextBytes(data);
+        File file = Files.createTempFile("digest", ".dat").toFile();
+        file.deleteOnExit();
+        FileUtils.writeByteArrayToFile(file, data);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(digest(file, data, sha256(data)));
+        }
+        byte[] other = data.clone();
+        other[other.length / 2]++;
+        assertFalse(digest(file, data, sha256(other)));
+    }
+
+    @Test
+    public void testReadBackIsLimitedPerWrite() throws Exception {
+        byte[] data = new byte[16 * CHUNK_SIZE];
+        ThreadLocalRandom.current().nextBytes(data);
+        File file = Files.createTempFile("digest", ".dat").toFile();
+        file.deleteOnExit();
+        FileUtils.writeByteArrayToFile(file, data);
+
+        Download download = new Download("http://random.org/bytes.dat");
+        download.setSize(data.length);
+        download.setFilename(file.getPath());
+        StreamingDigest digest = new StreamingDigest(sha256(data), 2 * CHUNK_SIZE);
+        for (int offset = data.length - CHUNK_SIZE; offset >= 0; offset -= CHUNK_SIZE) {
+            download.addProgress(offset, CHUNK_SIZE);
+            digest.update(download, offset, ByteBuffer.wrap(data, offset, CHUNK_SIZE));
+        }
+        // the first chunk is hashed from the buffer, the next two are read back, the rest is left to verify
+        assertEquals(3 * CHUNK_SIZE, digest.getPosition());
+        assertTrue(digest.verify(download));
+        assertEquals(data.length, digest.getPosition());
+    }
+
+    private static Checksum sha256(byte[] data) throws Exception {
+        return new Checksum("SHA-256", MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    /**
+     * Reports chunks of the file as written by several workers in random order.
+     */
+    private static boolean digest(File file, byte[] data, Checksum expected) throws Exception {
+        Download download = new Download("http://random.org/bytes.dat");
+        download.setSize(data.length);
+        download.setFilename(file.getPath());
+        StreamingDigest digest = new StreamingDigest(expected);
+
+        List<Integer> offsets = new ArrayList<>();
+        for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+            offsets.add(offset);
+        }
+        Collections.shuffle(offsets);
+        AtomicInteger next = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread worker = new Thread(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < offsets.size()) {
+                    int offset = offsets.get(index);
+                    int length = Math.min(CHUNK_SIZE, data.length - offset);
+                    download.addProgress(offset, length);
+                    digest.update(download, offset, ByteBuffer.wrap(data, offset, length));
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        // chunks written ahead are hashed as soon as the prefix reaches them
+        assertEquals(data.length, digest.getPosition());
+        return digest.verify(download);
+    }
+}
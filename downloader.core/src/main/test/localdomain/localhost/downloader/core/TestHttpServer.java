@@ -0,0 +1,331 @@
+package localdomain.localhost.downloader.core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local HTTP server answering HEAD and ranged GET requests for registered files. Every registered file
+ * gets a new {@code ETag} which is checked against {@code If-Range}.
+ *
+ * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
+ */
+public class TestHttpServer implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+    private final AtomicInteger corrupted = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger misplaced = new AtomicInteger();
+    private final AtomicInteger versions = new AtomicInteger();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private final AtomicInteger headRequests = new AtomicInteger();
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean digests;
+    private volatile long rate;
+    private volatile boolean lengthHidden;
+    private volatile boolean rangesAdvertised = true;
+    private volatile boolean rangesDisabled;
+    private volatile long cutAfter;
+
+    public TestHttpServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return url of the file with given content.
+     */
+    public String add(String path, byte[] data) {
+        put(path, new Resource(data.length) {
+            @Override
+            byte get(long offset) {
+                return data[(int) offset];
+            }
+        });
+        return getUrl(path);
+    }
+
+    /**
+     * @return url of the file with content generated by {@link #generated(long)}, so any size fits in memory.
+     */
+    public String add(String path, long size) {
+        put(path, new Resource(size) {
+            @Override
+            byte get(long offset) {
+                return generated(offset);
+            }
+        });
+        return getUrl(path);
+    }
+
+    /**
+     * @return {@code ETag} of the registered file.
+     */
+    public String getETag(String path) {
+        return resources.get(path).etag;
+    }
+
+    /**
+     * Registers the file, responses with content of the file it replaces are aborted.
+     */
+    private void put(String path, Resource resource) {
+        resource.etag = "\"v" + versions.incrementAndGet() + '"';
+        Resource replaced = resources.put(path, resource);
+        if (replaced != null) {
+            replaced.replaced = true;
+        }
+    }
+
+    /**
+     * Announces SHA-256 of files in {@code Repr-Digest} of HEAD responses and of parts in {@code Content-Digest}
+     * of ranged responses.
+     */
+    public void setDigests(boolean digests) {
+        this.digests = digests;
+    }
+
+    /**
+     * Limits speed of every response, so responses stay in progress for a while.
+     * @param bytesPerSecond limit or 0 to remove it.
+     */
+    public void setRate(long bytesPerSecond) {
+        this.rate = bytesPerSecond;
+    }
+
+    /**
+     * Hides size of files like servers of generated content do: responses have no {@code Content-Length},
+     * total size in {@code Content-Range} is {@code *} and ranges after the end are not satisfiable.
+     */
+    public void setLengthHidden(boolean lengthHidden) {
+        this.lengthHidden = lengthHidden;
+    }
+
+    /**
+     * Whether {@code Accept-Ranges} is sent, ranges are served anyway.
+     */
+    public void setRangesAdvertised(boolean rangesAdvertised) {
+        this.rangesAdvertised = rangesAdvertised;
+    }
+
+    /**
+     * Makes the server ignore ranges like simple servers do: whole files are sent in response to range requests,
+     * responses have neither {@code Accept-Ranges} nor {@code ETag}.
+     */
+    public void setRangesDisabled(boolean rangesDisabled) {
+        this.rangesDisabled = rangesDisabled;
+    }
+
+    /**
+     * Aborts every response after the number of bytes of its content.
+     * @param bytes number of bytes or 0 to send whole responses.
+     */
+    public void setCutAfter(long bytes) {
+        this.cutAfter = bytes;
+    }
+
+    /**
+     * Flips a byte in content of next ranged responses, their {@code Content-Digest} stays correct.
+     */
+    public void corrupt(int responses) {
+        corrupted.set(responses);
+    }
+
+    /**
+     * Answers next range requests with {@code 500} and an error page.
+     */
+    public void fail(int responses) {
+        failed.set(responses);
+    }
+
+    /**
+     * Answers next range requests with a range starting a byte after the requested one.
+     */
+    public void misplace(int responses) {
+        misplaced.set(responses);
+    }
+
+    /**
+     * @return number of GET requests with {@code Range} received so far.
+     */
+    public int getRangeRequests() {
+        return rangeRequests.get();
+    }
+
+    /**
+     * @return number of connections GET requests were received on so far, every one has its own client address.
+     * Connections of HEAD requests aren't counted, {@link HttpServer} closes them after the response.
+     */
+    public int getConnections() {
+        return connections.size();
+    }
+
+    /**
+     * @return number of HEAD requests received so far.
+     */
+    public int getHeadRequests() {
+        return headRequests.get();
+    }
+
+    public static byte generated(long offset) {
+        return (byte) (offset * 31 + (offset >>> 20));
+    }
+
+    private String getUrl(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        boolean aborted = false;
+        if (exchange.getRequestMethod().equals("GET")) {
+            connections.add(exchange.getRemoteAddress());
+        }
+        try {
+            Resource resource = resources.get(exchange.getRequestURI().getPath());
+            if (resource == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (rangesAdvertised && !rangesDisabled) {
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            }
+            if (!rangesDisabled) {
+                exchange.getResponseHeaders().set("ETag", resource.etag);
+            }
+            String total = lengthHidden ? "*" : String.valueOf(resource.size);
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                headRequests.incrementAndGet();
+                if (!lengthHidden) {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(resource.size));
+                }
+                if (digests) {
+                    exchange.getResponseHeaders().set("Repr-Digest", "sha-256=:" + resource.digest(0, resource.size - 1) + ":");
+                }
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            long from = 0;
+            long to = resource.size - 1;
+            boolean corrupt = false;
+            if (exchange.getRequestHeaders().containsKey("Range")) {
+                rangeRequests.incrementAndGet();
+            }
+            String range = rangesDisabled ? null : exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (range != null && failed.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+                byte[] page = "<html><body>Internal Server Error</body></html>".getBytes();
+                exchange.sendResponseHeaders(500, page.length);
+                exchange.getResponseBody().write(page);
+                return;
+            }
+            if (range != null && (ifRange == null || ifRange.equals(resource.etag))) {
+                String[] parts = range.substring("bytes=".length()).split("-");
+                from = Long.parseLong(parts[0]);
+                if (misplaced.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+                    from++;
+                }
+                if (parts.length > 1) {
+                    to = Math.min(to, Long.parseLong(parts[1]));
+                }
+                if (from >= resource.size) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + total);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + total);
+                if (digests) {
+                    exchange.getResponseHeaders().set("Content-Digest", "sha-256=:" + resource.digest(from, to) + ":");
+                }
+                corrupt = corrupted.getAndUpdate(n -> Math.max(n - 1, 0)) > 0;
+                // 0 is for chunked encoding
+                exchange.sendResponseHeaders(206, lengthHidden ? 0 : to - from + 1);
+            } else {
+                exchange.sendResponseHeaders(200, lengthHidden ? 0 : resource.size);
+            }
+
+            byte[] chunk = new byte[64 * 1024];
+            OutputStream body = exchange.getResponseBody();
+            for (long offset = from; offset <= to; ) {
+                if (resource.replaced) {
+                    // thrown out of the handler, so the server closes the connection
+                    throw new IllegalStateException("File is replaced");
+                }
+                if (cutAfter > 0 && offset - from >= cutAfter) {
+                    throw new IllegalStateException("Response is cut");
+                }
+                int length = (int) Math.min(chunk.length, Math.min(to - offset + 1, cutAfter > 0 ? from + cutAfter - offset : Long.MAX_VALUE));
+                for (int i = 0; i < length; i++) {
+                    chunk[i] = resource.get(offset + i);
+                }
+                if (corrupt) {
+                    chunk[0] ^= 1;
+                    corrupt = false;
+                }
+                body.write(chunk, 0, length);
+                offset += length;
+                if (rate > 0) {
+                    Thread.sleep(length * 1000L / rate);
+                }
+            }
+            body.close();
+        } catch (IllegalStateException e) {
+            // response isn't completed, even if it's chunked, and the server closes the connection
+            aborted = true;
+            throw e;
+        } catch (IOException e) {
+            // client closed connection
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!aborted) {
+                exchange.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static abstract class Resource {
+        private final long size;
+        private String etag;
+        private volatile boolean replaced;
+
+        private Resource(long size) {
+            this.size = size;
+        }
+
+        abstract byte get(long offset);
+
+        String digest(long from, long to) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            for (long offset = from; offset <= to; offset++) {
+                digest.update(get(offset));
+            }
+            return Base64.getEncoder().encodeToString(digest.digest());
+        }
+    }
+}
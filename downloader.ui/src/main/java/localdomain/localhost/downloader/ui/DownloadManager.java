@@ -4,15 +4,18 @@ import localdomain.localhost.downloader.core.Download;
 import localdomain.localhost.downloader.core.DownloadCreationException;
 import localdomain.localhost.downloader.core.Downloader;
 import localdomain.localhost.downloader.core.DownloaderEventHandler;
+import localdomain.localhost.downloader.core.ProgressSnapshot;
 
 import javax.swing.*;
-import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableCellRenderer;
 import java.awt.Component;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
@@ -38,22 +41,22 @@ public class DownloadManager {
     }
 
     public static void main(String... args) {
-        AbstractTableModel tableModel = new DownloadsTableModel(downloader);
+        downloader.restoreDownloads();
+        DownloadsTableModel tableModel = new DownloadsTableModel(downloader);
 
         downloader.setHandler(new DownloaderEventHandler() {
             @Override
             public void downloadStateChanged(Download download) {
-                SwingUtilities.invokeLater(tableModel::fireTableDataChanged);
+                tableModel.stateChanged(download);
             }
 
             @Override
-            public void progressChanged(Download download) {
-                // todo lots of invocations here, maybe add throttling?
-                SwingUtilities.invokeLater(tableModel::fireTableDataChanged);
+            public void progressChanged(Download download, ProgressSnapshot snapshot) {
+                tableModel.progressChanged(download, snapshot);
             }
         });
 
-        downloader.startAll(); // download queue is empty, but it's more convenient.
+        downloader.startAll(); // resumes unfinished downloads, queue is empty otherwise, but it's more convenient.
 
         JFrame frame = new JFrame("Download Manager");
         frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
@@ -63,7 +66,7 @@ public class DownloadManager {
 
         frame.add(new JScrollPane(table));
 
-        JMenuBar menubar = createMenu(downloader, tableModel, frame);
+        JMenuBar menubar = createMenu(downloader, tableModel, table, frame);
 
         frame.setJMenuBar(menubar);
 
@@ -72,12 +75,12 @@ public class DownloadManager {
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
-                downloader.stopAll();
+                downloader.close();
             }
         });
     }
 
-    private static JMenuBar createMenu(final Downloader downloader, final AbstractTableModel tableModel, final JFrame frame) {
+    private static JMenuBar createMenu(final Downloader downloader, final DownloadsTableModel tableModel, final JTable table, final JFrame frame) {
         JMenuBar menubar = new JMenuBar();
 
         JMenu file = new JMenu("File");
@@ -91,8 +94,7 @@ public class DownloadManager {
             public void actionPerformed(ActionEvent e) {
                 String url = JOptionPane.showInputDialog(frame, "URL to download from");
                 try {
-                    downloader.createDownload(url.trim());
-                    tableModel.fireTableDataChanged();
+                    tableModel.addDownload(downloader.createDownload(url.trim()));
                 } catch (DownloadCreationException e1) {
                     JOptionPane.showMessageDialog(frame, "Bad URL");
                 }
@@ -119,6 +121,38 @@ public class DownloadManager {
 
         menubar.add(file);
 
+        JMenu downloadMenu = new JMenu("Download");
+        downloadMenu.setMnemonic(KeyEvent.VK_D);
+
+        JMenuItem moveToFrontMenuItem = new JMenuItem("Move to front");
+        moveToFrontMenuItem.addActionListener(e -> {
+            // selected rows move to the top keeping their order
+            List<Download> selected = getSelectedDownloads(table, tableModel);
+            Collections.reverse(selected);
+            for (Download download : selected) {
+                downloader.moveToFront(download);
+                tableModel.moveToFront(download);
+            }
+        });
+        downloadMenu.add(moveToFrontMenuItem);
+
+        JMenu priority = new JMenu("Priority");
+        Download.Priority[] priorities = Download.Priority.values();
+        for (int i = priorities.length - 1; i >= 0; i--) {
+            Download.Priority option = priorities[i];
+            JMenuItem priorityMenuItem = new JMenuItem(option.name());
+            priorityMenuItem.addActionListener(e -> {
+                for (Download download : getSelectedDownloads(table, tableModel)) {
+                    downloader.setPriority(download, option);
+                    tableModel.priorityChanged(download);
+                }
+            });
+            priority.add(priorityMenuItem);
+        }
+        downloadMenu.add(priority);
+
+        menubar.add(downloadMenu);
+
         JMenu performance = new JMenu("Performance");
 
         JMenu threads = new JMenu("Threads");
@@ -134,9 +168,62 @@ public class DownloadManager {
         }
         performance.add(threads);
 
+        JMenu executionMode = new JMenu("Execution");
+        ButtonGroup executionModeGroup = new ButtonGroup();
+        for (Downloader.ExecutionMode mode : Downloader.ExecutionMode.values()) {
+            JRadioButtonMenuItem executionModeOption = new JRadioButtonMenuItem(mode.name(), mode == downloader.getExecutionMode());
+            executionModeOption.setEnabled(mode.isSupported());
+            executionModeOption.addActionListener(e -> downloader.setExecutionMode(mode));
+            executionModeGroup.add(executionModeOption);
+            executionMode.add(executionModeOption);
+        }
+        performance.add(executionMode);
+
+        JMenu preallocation = new JMenu("Preallocation");
+        ButtonGroup preallocationGroup = new ButtonGroup();
+        for (Downloader.Preallocation option : Downloader.Preallocation.values()) {
+            JRadioButtonMenuItem preallocationOption = new JRadioButtonMenuItem(option.name(), option == downloader.getPreallocation());
+            preallocationOption.addActionListener(e -> downloader.setPreallocation(option));
+            preallocationGroup.add(preallocationOption);
+            preallocation.add(preallocationOption);
+        }
+        performance.add(preallocation);
+
+        JMenu bandwidth = new JMenu("Bandwidth");
+        ButtonGroup bandwidthGroup = new ButtonGroup();
+        long[] limits = { 0, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024, 16 * 1024 * 1024 };
+        for (long limit : limits) {
+            String name = limit == 0 ? "Unlimited" : (limit >= 1024 * 1024 ? limit / (1024 * 1024) + " MB/s" : limit / 1024 + " KB/s");
+            JRadioButtonMenuItem bandwidthOption = new JRadioButtonMenuItem(name, limit == downloader.getBandwidthLimit());
+            bandwidthOption.addActionListener(e -> downloader.setBandwidthLimit(limit));
+            bandwidthGroup.add(bandwidthOption);
+            bandwidth.add(bandwidthOption);
+        }
+        performance.add(bandwidth);
+
+        JMenu activeDownloads = new JMenu("Active downloads");
+        ButtonGroup activeDownloadsGroup = new ButtonGroup();
+        int[] activeLimits = { 0, 1, 2, 3, 5, 10 };
+        for (int limit : activeLimits) {
+            JRadioButtonMenuItem activeDownloadsOption = new JRadioButtonMenuItem(limit == 0 ? "Unlimited" : Integer.toString(limit),
+                    limit == downloader.getMaxActiveDownloads());
+            activeDownloadsOption.addActionListener(e -> downloader.setMaxActiveDownloads(limit));
+            activeDownloadsGroup.add(activeDownloadsOption);
+            activeDownloads.add(activeDownloadsOption);
+        }
+        performance.add(activeDownloads);
+
         menubar.add(performance);
 
         return menubar;
     }
 
+    private static List<Download> getSelectedDownloads(JTable table, DownloadsTableModel tableModel) {
+        List<Download> selected = new ArrayList<>();
+        for (int row : table.getSelectedRows()) {
+            selected.add(tableModel.getDownload(table.convertRowIndexToModel(row)));
+        }
+        return selected;
+    }
+
 }
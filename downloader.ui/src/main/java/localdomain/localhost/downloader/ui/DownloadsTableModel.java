@@ -2,27 +2,151 @@ package localdomain.localhost.downloader.ui;
 
 import localdomain.localhost.downloader.core.Download;
 import localdomain.localhost.downloader.core.Downloader;
+import localdomain.localhost.downloader.core.ProgressSnapshot;
 
+import javax.swing.Timer;
 import javax.swing.table.AbstractTableModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Table of downloads rendered from snapshots. Snapshots are captured by {@link #stateChanged(Download)} and
+ * {@link #progressChanged(Download, ProgressSnapshot)} off the EDT and applied at a fixed refresh rate,
+ * firing updates only for changed rows, so painting never touches live {@link Download} state.
+ *
  * @author <a href="mailto:dmitriy.matveev@odnoklassniki.ru">Dmitriy Matveev</a>
  */
 class DownloadsTableModel extends AbstractTableModel {
-    private final Downloader downloader;
+    private static final int REFRESH_INTERVAL = 250;
+
+    /**
+     * Rows and their index are only accessed from EDT.
+     */
+    private final List<Row> rows = new ArrayList<>();
+    private final List<Download> rowDownloads = new ArrayList<>();
+    private final Map<Download, Integer> index = new HashMap<>();
+
+    private final Map<Download, Row> latest = new ConcurrentHashMap<>();
+    private final Set<Download> changed = ConcurrentHashMap.newKeySet();
 
     public DownloadsTableModel(Downloader downloader) {
-        this.downloader = downloader;
+        for (Download download : downloader.getDownloads()) {
+            addDownload(download);
+        }
+        new Timer(REFRESH_INTERVAL, e -> refresh()).start();
+    }
+
+    /**
+     * Appends download to the table, should be called from EDT.
+     */
+    public void addDownload(Download download) {
+        if (index.containsKey(download)) {
+            return;
+        }
+        Row row = latest.computeIfAbsent(download, Row::new);
+        index.put(download, rows.size());
+        rows.add(row);
+        rowDownloads.add(download);
+        fireTableRowsInserted(rows.size() - 1, rows.size() - 1);
+    }
+
+    /**
+     * Captures new state of the download, may be called from any thread.
+     */
+    public void stateChanged(Download download) {
+        Download.State state = download.getState();
+        latest.compute(download, (d, row) -> (row == null ? new Row(d) : row).withState(state));
+        changed.add(download);
+    }
+
+    /**
+     * Captures new priority of the download, may be called from any thread.
+     */
+    public void priorityChanged(Download download) {
+        Download.Priority priority = download.getPriority();
+        latest.compute(download, (d, row) -> (row == null ? new Row(d) : row).withPriority(priority));
+        changed.add(download);
+    }
+
+    /**
+     * Moves row of the download to the top of the table, should be called from EDT.
+     */
+    public void moveToFront(Download download) {
+        Integer row = index.get(download);
+        if (row == null || row == 0) {
+            return;
+        }
+        rows.add(0, rows.remove((int) row));
+        rowDownloads.add(0, rowDownloads.remove((int) row));
+        for (int i = 0; i <= row; i++) {
+            index.put(rowDownloads.get(i), i);
+        }
+        fireTableRowsUpdated(0, row);
+    }
+
+    /**
+     * @return download rendered in the row, should be called from EDT.
+     */
+    public Download getDownload(int row) {
+        return rowDownloads.get(row);
+    }
+
+    /**
+     * Captures new progress of the download, may be called from any thread.
+     */
+    public void progressChanged(Download download, ProgressSnapshot snapshot) {
+        double completion = snapshot.getCompletion();
+        latest.compute(download, (d, row) -> (row == null ? new Row(d) : row).withCompletion(completion));
+        changed.add(download);
+    }
+
+    /**
+     * Applies captured snapshots to rows and notifies table about updated ranges of rows.
+     */
+    private void refresh() {
+        int[] updated = new int[changed.size()];
+        int count = 0;
+        Iterator<Download> iterator = changed.iterator();
+        while (iterator.hasNext()) {
+            Download download = iterator.next();
+            iterator.remove();
+
+            Integer row = index.get(download);
+            if (row == null) {
+                // not added to the table yet
+                continue;
+            }
+            rows.set(row, latest.get(download));
+            if (count == updated.length) {
+                updated = Arrays.copyOf(updated, count * 2 + 1);
+            }
+            updated[count++] = row;
+        }
+
+        Arrays.sort(updated, 0, count);
+        int from = 0;
+        for (int i = 1; i <= count; i++) {
+            if (i == count || updated[i] > updated[i - 1] + 1) {
+                fireTableRowsUpdated(updated[from], updated[i - 1]);
+                from = i;
+            }
+        }
     }
 
     @Override
     public int getRowCount() {
-        return downloader.getDownloads().size();
+        return rows.size();
     }
 
     @Override
     public int getColumnCount() {
-        return 3;
+        return 4;
     }
 
     @Override
@@ -33,6 +157,8 @@ class DownloadsTableModel extends AbstractTableModel {
             case 1:
                 return "State";
             case 2:
+                return "Priority";
+            case 3:
                 return "Progress";
         }
         return null;
@@ -40,15 +166,50 @@ class DownloadsTableModel extends AbstractTableModel {
 
     @Override
     public Object getValueAt(int rowIndex, int columnIndex) {
-        Download download = downloader.getDownloads().get(rowIndex);
+        Row row = rows.get(rowIndex);
         switch (columnIndex) {
             case 0:
-                return download.getUrl();
+                return row.url;
             case 1:
-                return download.getState();
+                return row.state;
             case 2:
-                return download.getCompletion();
+                return row.priority;
+            case 3:
+                return row.completion;
         }
         return null;
     }
+
+    /**
+     * Immutable snapshot of a download rendered in a row.
+     */
+    private static class Row {
+        private final String url;
+        private final Download.State state;
+        private final Download.Priority priority;
+        private final double completion;
+
+        private Row(Download download) {
+            this(download.getUrl(), download.getState(), download.getPriority(), download.getCompletion());
+        }
+
+        private Row(String url, Download.State state, Download.Priority priority, double completion) {
+            this.url = url;
+            this.state = state;
+            this.priority = priority;
+            this.completion = completion;
+        }
+
+        private Row withState(Download.State state) {
+            return new Row(url, state, priority, completion);
+        }
+
+        private Row withPriority(Download.Priority priority) {
+            return new Row(url, state, priority, completion);
+        }
+
+        private Row withCompletion(double completion) {
+            return new Row(url, state, priority, completion);
+        }
+    }
 }